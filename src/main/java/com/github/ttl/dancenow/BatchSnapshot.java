@@ -0,0 +1,310 @@
+package com.github.ttl.dancenow;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Macro;
+import ij.gui.GenericDialog;
+
+import java.awt.GraphicsEnvironment;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Headless, macro-callable snapshot batch (Plugins > EveryBody > DanceNow Batch Snapshot).
+ * Runs the same snapshot engine as the Snapshot dialog without any Swing UI, e.g.
+ *
+ * run("DanceNow Batch Snapshot", "image=/data/img.tif positions=/data/pos.csv width=200 height=200
+ *     channels=1,3 cross annotation output=png directory=/data/out");
+ *
+ * Flags: cross, reverse, annotation, virtual (open the image as a virtual stack),
+ * cache (reuse PNG/ZIP snapshots from the shared render cache).
+ * Output: png, tiff, montage (with montage=10x10), zip, strip (time strips) or kymograph. Channels: comma-separated list or "all".
+ * Projection: none, max, mean or sum over axis=z|t, range=N slices (or frames) on each side.
+ * Drift: drift=<path> to a T,dX,dY table (as exported by DanceNow) shifts every crop by the drift of its frame.
+ */
+class BatchSnapshot {
+
+    void run() {
+        String options = Macro.getOptions();
+        if (options == null) {
+            if (GraphicsEnvironment.isHeadless()) {
+                IJ.log("DanceNow Batch Snapshot: no options given. Usage: image=<path> positions=<path> "
+                    + "directory=<path> [width=200] [height=200] [channels=all] [output=png|tiff|montage|zip|strip|kymograph] "
+                    + "[montage=10x10] [projection=none|max|mean|sum] [axis=z|t] [range=2] [drift=<path>] "
+                    + "[cross] [reverse] [annotation] [virtual] [cache]");
+                return;
+            }
+            options = showDialog();
+            if (options == null) {
+                return;
+            }
+        }
+
+        String imagePath = Macro.getValue(options, "image", "");
+        String positionsPath = Macro.getValue(options, "positions", "");
+        String directory = Macro.getValue(options, "directory", "");
+        if (imagePath.isEmpty() || positionsPath.isEmpty() || directory.isEmpty()) {
+            IJ.error("DanceNow Batch Snapshot", "image=, positions= and directory= are required");
+            return;
+        }
+
+        SnapshotSettings settings;
+        try {
+            settings = parseSettings(options);
+        } catch (IllegalArgumentException e) {
+            IJ.error("DanceNow Batch Snapshot", e.getMessage());
+            return;
+        }
+
+        ImagePlus imp = hasFlag(options, "virtual") ? IJ.openVirtual(imagePath) : IJ.openImage(imagePath);
+        if (imp == null) {
+            IJ.error("DanceNow Batch Snapshot", "Could not open image: " + imagePath);
+            return;
+        }
+
+        try {
+            List<Position> positions = readPositions(new File(positionsPath));
+            if (positions.isEmpty()) {
+                IJ.error("DanceNow Batch Snapshot", "No positions found in " + positionsPath);
+                return;
+            }
+
+            File saveDir = new File(directory);
+            if (!saveDir.isDirectory() && !saveDir.mkdirs()) {
+                IJ.error("DanceNow Batch Snapshot", "Could not create output directory: " + directory);
+                return;
+            }
+
+            long start = System.currentTimeMillis();
+            SnapshotEngine engine = new SnapshotEngine(imp, settings);
+            if (settings.output.isTimeSeries()) {
+                TimeStripJob stripJob = new TimeStripJob(engine, positions, saveDir,
+                    settings.output == SnapshotSettings.Output.KYMOGRAPH);
+                stripJob.run((completed, total) -> IJ.showProgress(completed, total), () -> false);
+                IJ.log(String.format("DanceNow: %s -> %s (%d %s, %.1f s)",
+                    imp.getTitle(), saveDir.getAbsolutePath(), stripJob.getWrittenCount(),
+                    settings.output.label.toLowerCase(), (System.currentTimeMillis() - start) / 1000.0));
+                return;
+            }
+            SnapshotJob job = new SnapshotJob(engine, positions, saveDir);
+            if (hasFlag(options, "cache")) {
+                job.setRenderCache(RenderCache.getDefault());
+            }
+            job.run((completed, total) -> IJ.showProgress(completed, total), () -> false);
+            IJ.log(String.format("DanceNow: %s -> %s (%d written, %d skipped, %d cached, %.1f s)",
+                imp.getTitle(), saveDir.getAbsolutePath(), job.getWrittenCount(), job.getSkippedCount(),
+                job.getCacheHits(),
+                (System.currentTimeMillis() - start) / 1000.0));
+        } catch (IOException e) {
+            IJ.error("DanceNow Batch Snapshot", "Snapshot failed: " + e.getMessage());
+        } finally {
+            imp.close();
+        }
+    }
+
+    /**
+     * Interactive fallback when called from the menu; returns options in macro syntax.
+     */
+    private String showDialog() {
+        GenericDialog gd = new GenericDialog("DanceNow Batch Snapshot");
+        gd.addFileField("Image", "");
+        gd.addFileField("Positions", "");
+        gd.addDirectoryField("Directory", "");
+        gd.addNumericField("Width", 200, 0);
+        gd.addNumericField("Height", 200, 0);
+        gd.addStringField("Channels", "all");
+        gd.addChoice("Output", new String[]{"png", "tiff", "montage", "zip", "strip", "kymograph"}, "png");
+        gd.addStringField("Montage", "10x10");
+        gd.addChoice("Projection", new String[]{"none", "max", "mean", "sum"}, "none");
+        gd.addChoice("Axis", new String[]{"z", "t"}, "z");
+        gd.addNumericField("Range", 2, 0);
+        gd.addFileField("Drift table (optional)", "");
+        gd.addCheckbox("Cross", false);
+        gd.addCheckbox("Reverse", false);
+        gd.addCheckbox("Annotation", false);
+        gd.addCheckbox("Virtual", false);
+        gd.addCheckbox("Cache", false);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return null;
+        }
+
+        StringBuilder options = new StringBuilder();
+        options.append("image=[").append(gd.getNextString()).append("] ");
+        options.append("positions=[").append(gd.getNextString()).append("] ");
+        options.append("directory=[").append(gd.getNextString()).append("] ");
+        options.append("width=").append((int) gd.getNextNumber()).append(' ');
+        options.append("height=").append((int) gd.getNextNumber()).append(' ');
+        options.append("channels=").append(gd.getNextString().replace(" ", "")).append(' ');
+        options.append("output=").append(gd.getNextChoice()).append(' ');
+        options.append("montage=").append(gd.getNextString().trim()).append(' ');
+        options.append("projection=").append(gd.getNextChoice()).append(' ');
+        options.append("axis=").append(gd.getNextChoice()).append(' ');
+        options.append("range=").append((int) gd.getNextNumber()).append(' ');
+        String drift = gd.getNextString().trim();
+        if (!drift.isEmpty()) {
+            options.append("drift=[").append(drift).append("] ");
+        }
+        if (gd.getNextBoolean()) options.append("cross ");
+        if (gd.getNextBoolean()) options.append("reverse ");
+        if (gd.getNextBoolean()) options.append("annotation ");
+        if (gd.getNextBoolean()) options.append("virtual ");
+        if (gd.getNextBoolean()) options.append("cache ");
+        return options.toString();
+    }
+
+    static SnapshotSettings parseSettings(String options) {
+        SnapshotSettings settings = new SnapshotSettings();
+        settings.width = parsePositiveInt(Macro.getValue(options, "width", "200"), "width");
+        settings.height = parsePositiveInt(Macro.getValue(options, "height", "200"), "height");
+        settings.includeCross = hasFlag(options, "cross");
+        settings.horizontalReverse = hasFlag(options, "reverse");
+        settings.includeAnnotation = hasFlag(options, "annotation");
+
+        String channels = Macro.getValue(options, "channels", "all").trim();
+        if (!channels.equalsIgnoreCase("all")) {
+            List<Integer> selected = new ArrayList<>();
+            int maxChannel = 0;
+            for (String part : channels.split(",")) {
+                int channel = parsePositiveInt(part.trim(), "channels");
+                selected.add(channel);
+                maxChannel = Math.max(maxChannel, channel);
+            }
+            settings.channels = new boolean[maxChannel];
+            for (int channel : selected) {
+                settings.channels[channel - 1] = true;
+            }
+        }
+
+        String output = Macro.getValue(options, "output", "png").trim().toLowerCase();
+        switch (output) {
+            case "png":
+                settings.output = SnapshotSettings.Output.PNG;
+                break;
+            case "tiff":
+            case "tif":
+                settings.output = SnapshotSettings.Output.TIFF;
+                break;
+            case "montage":
+                settings.output = SnapshotSettings.Output.MONTAGE;
+                break;
+            case "zip":
+                settings.output = SnapshotSettings.Output.ZIP;
+                break;
+            case "strip":
+                settings.output = SnapshotSettings.Output.STRIP;
+                break;
+            case "kymograph":
+                settings.output = SnapshotSettings.Output.KYMOGRAPH;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown output '" + output + "' (png, tiff, montage, zip, strip or kymograph)");
+        }
+
+        String[] layout = Macro.getValue(options, "montage", "10x10").toLowerCase().split("x");
+        if (layout.length != 2) {
+            throw new IllegalArgumentException("montage must look like 10x10");
+        }
+        settings.montageColumns = parsePositiveInt(layout[0].trim(), "montage");
+        settings.montageRows = parsePositiveInt(layout[1].trim(), "montage");
+
+        String projection = Macro.getValue(options, "projection", "none").trim().toLowerCase();
+        switch (projection) {
+            case "none":
+                settings.projection = SnapshotSettings.Projection.NONE;
+                break;
+            case "max":
+                settings.projection = SnapshotSettings.Projection.MAX;
+                break;
+            case "mean":
+            case "average":
+                settings.projection = SnapshotSettings.Projection.MEAN;
+                break;
+            case "sum":
+                settings.projection = SnapshotSettings.Projection.SUM;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown projection '" + projection + "' (none, max, mean or sum)");
+        }
+        String axis = Macro.getValue(options, "axis", "z").trim().toLowerCase();
+        if (!axis.equals("z") && !axis.equals("t")) {
+            throw new IllegalArgumentException("axis must be z or t, got '" + axis + "'");
+        }
+        settings.projectTime = axis.equals("t");
+        String range = Macro.getValue(options, "range", "2").trim();
+        settings.projectionRange = range.equals("0") ? 0 : parsePositiveInt(range, "range");
+
+        String drift = Macro.getValue(options, "drift", "").trim();
+        if (!drift.isEmpty()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(drift))) {
+                settings.drift = DriftTable.read(reader);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not read drift table " + drift + ": " + e.getMessage());
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Reads a TXT or CSV position file (X,Y[,Z,T[,Note]]); X,Y may be decimal, missing Z,T default to 1, bad lines are skipped.
+     */
+    static List<Position> readPositions(File file) throws IOException {
+        boolean isCSV = file.getName().toLowerCase().endsWith(".csv");
+        List<Position> positions = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                String[] parts = isCSV ? line.split(",", 5) : line.split("[,\\s\\t]+", 5);
+                if (parts.length < 2) continue;
+                try {
+                    String xText = parts[0].trim(), yText = parts[1].trim();
+                    int z = parts.length >= 3 ? parseOrDefault(parts[2]) : 1;
+                    int t = parts.length >= 4 ? parseOrDefault(parts[3]) : 1;
+                    String note = parts.length >= 5 ? parts[4].trim() : "";
+                    if (xText.contains(".") || yText.contains(".")) {
+                        // Sub-pixel X,Y from a refined export
+                        positions.add(Position.subpixel(Double.parseDouble(xText), Double.parseDouble(yText), z, t, note));
+                    } else {
+                        positions.add(new Position(Integer.parseInt(xText), Integer.parseInt(yText), z, t, note));
+                    }
+                } catch (NumberFormatException e) {
+                    // Header line or invalid X,Y - skip
+                }
+            }
+        }
+        return positions;
+    }
+
+    private static int parseOrDefault(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    private static int parsePositiveInt(String value, String key) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n > 0) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to the error below
+        }
+        throw new IllegalArgumentException(key + " must be a positive integer, got '" + value + "'");
+    }
+
+    /**
+     * Checkbox-style keyword in macro options, matched the way GenericDialog does it.
+     */
+    private static boolean hasFlag(String options, String key) {
+        return (" " + options + " ").contains(" " + key + " ");
+    }
+}
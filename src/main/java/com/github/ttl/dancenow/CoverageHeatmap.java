@@ -0,0 +1,106 @@
+package com.github.ttl.dancenow;
+
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Coverage heatmap of the saved positions: a coarse grid of counts per (z,t) plane, drawn as a
+ * small translucent image stretched over the canvas. Each position added or removed changes one
+ * count and, for the displayed plane, one pixel, so edits cost the same whatever the list length.
+ * Bins are shaded on a fixed logarithmic scale (blue for one position, red when crowded), which
+ * keeps every colour valid without rescanning the grid. Bins are kept in frame 1 coordinates;
+ * with drift, the image is drawn shifted by the drift of the displayed frame.
+ */
+class CoverageHeatmap extends PositionLayer implements PositionList.Listener {
+    private static final int MAX_BINS = 128;    // Bins along the longer image side
+    private static final int SATURATION = 64;   // Count shown in the densest colour
+    private static final int ALPHA = 120;
+
+    private final int width, height;
+    private final int binSize, nx, ny;
+    private final Map<Long, int[]> counts = new HashMap<>(); // Plane -> counts, row-major
+    private BufferedImage image;                // Rendered bins of the displayed plane
+    private long imagePlane;
+
+    CoverageHeatmap(ImagePlus imp) {
+        super(imp, "DanceNow heatmap");
+        width = imp.getWidth();
+        height = imp.getHeight();
+        binSize = Math.max(1, (Math.max(width, height) + MAX_BINS - 1) / MAX_BINS);
+        nx = (width + binSize - 1) / binSize;
+        ny = (height + binSize - 1) / binSize;
+    }
+
+    /**
+     * False once the image was resized, e.g. cropped, and the bins no longer cover it.
+     */
+    boolean fits(ImagePlus target) {
+        return target.getWidth() == width && target.getHeight() == height;
+    }
+
+    private static long planeKey(int z, int t) {
+        return ((long) z << 32) | (t & 0xffffffffL);
+    }
+
+    @Override
+    public void positionAdded(Position pos) {
+        update(pos, 1);
+    }
+
+    @Override
+    public void positionRemoved(Position pos) {
+        update(pos, -1);
+    }
+
+    private void update(Position pos, int delta) {
+        if (pos.x < 0 || pos.y < 0 || pos.x >= width || pos.y >= height) {
+            return;
+        }
+        long plane = planeKey(pos.z, pos.t);
+        int[] bins = counts.computeIfAbsent(plane, k -> new int[nx * ny]);
+        int bx = pos.x / binSize, by = pos.y / binSize;
+        int count = bins[by * nx + bx] += delta;
+        if (image != null && plane == imagePlane) {
+            image.setRGB(bx, by, color(count));
+        }
+    }
+
+    private static int color(int count) {
+        if (count <= 0) {
+            return 0;
+        }
+        float level = (float) Math.min(1, Math.log(1 + count) / Math.log(1 + SATURATION));
+        int rgb = Color.HSBtoRGB(0.67f * (1 - level), 1f, 1f) & 0xffffff;
+        return (ALPHA << 24) | rgb;
+    }
+
+    @Override
+    public void draw(Graphics g) {
+        ImageCanvas canvas = imp != null ? imp.getCanvas() : null;
+        if (canvas == null) {
+            return;
+        }
+        long plane = planeKey(imp.getZ(), imp.getT());
+        if (image == null || plane != imagePlane) {
+            // Plane switch: render its bins once, later edits update single pixels
+            image = new BufferedImage(nx, ny, BufferedImage.TYPE_INT_ARGB);
+            imagePlane = plane;
+            int[] bins = counts.get(plane);
+            if (bins != null) {
+                for (int i = 0; i < bins.length; i++) {
+                    image.setRGB(i % nx, i / nx, color(bins[i]));
+                }
+            }
+        }
+        int dx = driftX(imp.getT()), dy = driftY(imp.getT());
+        int x0 = canvas.screenX(dx), y0 = canvas.screenY(dy);
+        int x1 = canvas.screenX(nx * binSize + dx), y1 = canvas.screenY(ny * binSize + dy);
+        g.drawImage(image, x0, y0, x1, y1, 0, 0, nx, ny, null);
+    }
+}
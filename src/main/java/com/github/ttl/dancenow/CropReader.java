@@ -0,0 +1,31 @@
+package com.github.ttl.dancenow;
+
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads the pixels of one stack plane inside a rectangle. Implementations must be safe to call
+ * from several threads at once; the returned processor covers exactly the rectangle.
+ */
+interface CropReader extends Closeable {
+
+    ImageProcessor read(int stackIndex, Rectangle rect) throws IOException;
+
+    /**
+     * Reads several crops of the same plane, e.g. all positions of one frame during a single pass.
+     */
+    default ImageProcessor[] read(int stackIndex, Rectangle[] rects) throws IOException {
+        ImageProcessor[] crops = new ImageProcessor[rects.length];
+        for (int i = 0; i < rects.length; i++) {
+            crops[i] = read(stackIndex, rects[i]);
+        }
+        return crops;
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -9,7 +9,6 @@ import ij.gui.ImageCanvas;
 import ij.gui.Overlay;
 import ij.gui.Line;
 import ij.gui.Roi;
-import ij.gui.TextRoi;
 import ij.process.ImageProcessor;
 import ij.plugin.ChannelSplitter;
 import ij.plugin.RGBStackMerge;
@@ -27,11 +26,19 @@ import java.awt.datatransfer.StringSelection;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.Vector;
+import java.util.stream.IntStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Writer;
 import java.io.IOException;
 
 /**
@@ -44,6 +51,12 @@ public class DanceNow implements PlugIn {
     
     @Override
     public void run(String arg) {
+        // Headless/macro snapshot batch, see BatchSnapshot for the options
+        if ("batch".equals(arg)) {
+            new BatchSnapshot().run();
+            return;
+        }
+        
         if (window == null || !window.isDisplayable()) {
             window = new DanceNowWindow();
         }
@@ -54,13 +67,24 @@ public class DanceNow implements PlugIn {
     private static class DanceNowWindow extends JFrame {
         private JTextField xField, yField, zField, tField, noteField;
         private JLabel statusLabel, currentPosLabel;
-        private JButton goButton, addHereButton, nextButton, backButton, removeButton, clearButton, exportButton, loadButton, snapshotButton;
+        private JButton goButton, addHereButton, nextButton, backButton, nearestButton, removeButton, clearButton, exportButton, loadButton, snapshotButton, toolsButton;
+        private JPopupMenu toolsMenu; // Batch operations on the position list
         private Timer updateTimer;
         private JTable positionTable;
         private DefaultTableModel tableModel;
-        private List<Position> positions;
+        private PositionList positions;
+        private final PositionIndex positionIndex = new PositionIndex(); // Nearest-position lookup per (z,t)
+        private String duplicateRadius = "5", duplicateDZ = "0", duplicateDT = "0"; // Last near-duplicate tolerance
+        private int lastCenterX = -1, lastCenterY = -1, lastCenterZ = -1, lastCenterT = -1;
+        private boolean viewMoving = false; // View centre changed since the last update tick
+        private JCheckBox markersToggle;
+        private PositionMarkers markers; // Marker layer of the image it was installed on
+        private JCheckBox heatmapToggle;
+        private CoverageHeatmap heatmap; // Heatmap layer of the image it was installed on
+        private boolean layersStale = false; // Positions changed since the position layers were last drawn
         private int currentPositionIndex = -1;
         private boolean isUpdatingTable = false; // Flag to prevent infinite recursion
+        private boolean isSelectingNearest = false; // Automatic row selection, leaves the input fields alone
         private boolean sortAscending = true; // Track sort direction
         private Overlay crosshairOverlay; // Overlay for center crosshair
         private boolean showCrosshair = false; // Toggle for crosshair visibility (default off)
@@ -70,38 +94,49 @@ public class DanceNow implements PlugIn {
         private ImageWindow lastImageWindow; // Track last image window for cleanup
         private MouseMotionListener crosshairMouseListener; // Mouse listener for crosshair
         private MouseWheelListener crosshairWheelListener; // Wheel listener for crosshair
-        
-        private static class Position {
-            int x, y, z, t;
-            String note;
-            
-            Position(int x, int y, int z, int t) {
-                this(x, y, z, t, "");
-            }
-            
-            Position(int x, int y, int z, int t, String note) {
-                this.x = x;
-                this.y = y;
-                this.z = z;
-                this.t = t;
-                this.note = note != null ? note : "";
-            }
-            
-            @Override
-            public String toString() {
-                return String.format("%d,%d,%d,%d", x, y, z, t);
-            }
-            
-            public String toStringWithNote() {
-                if (note != null && !note.isEmpty()) {
-                    return String.format("%d,%d,%d,%d,%s", x, y, z, t, note);
-                }
-                return toString();
-            }
-        }
+        private PositionThumbnails thumbnails; // Lazy thumbnail column, shown on demand
+        private MeasurementColumns measurementColumns; // Intensity columns, shown after a measurement
+        private String maximaZ, maximaT; // Last maxima settings, null until first use
+        private String maximaProminence = "10";
+        private boolean maximaExcludeEdges = true;
+        private DriftTable driftTable; // Per-frame stage drift applied on the fly, null when off
+        private String trackTemplate = "21"; // Last tracking settings
+        private String trackSearch = "10";
+        private String trackMinScore = "0.5";
+        private boolean trackUpdate = true;
+        private String refineRadius = "3"; // Last refinement settings
+        private PositionRefiner.Method refineMethod = PositionRefiner.Method.CENTROID;
+        private boolean refineSubpixel = false;
+        private String measureWidth = "32", measureHeight = "32", measureBorder = "2"; // Last measurement window
+        private int[] visitOrder; // Optimized row order for Next/Back and snapshots, null for table order
+        private final NoteIndex noteIndex = new NoteIndex(); // Word and prefix lookup over the notes
+        private JTextField filterField;
+        private String filterQuery; // Note filter for Next/Back, export and snapshots, null when off
+        private int[] filterOrder; // Matching rows in visiting order, null until computed
+        private int[] filterOrderBase; // The visitOrder that filterOrder was computed from
+        private JCheckBox optimizeOrderToggle;
+        private JCheckBox syncToggle;
+        private SyncGroup syncGroup; // Windows that follow navigation, null until chosen
+        private JCheckBox prefetchToggle; // Load planes of the upcoming positions on virtual stacks
+        private static final int PREFETCH_POSITIONS = 3; // Positions loaded ahead and behind the current one
         
         public DanceNowWindow() {
-            positions = new ArrayList<>();
+            positions = new PositionList();
+            positions.addListener(positionIndex);
+            positions.addListener(noteIndex);
+            positions.addListener(new PositionList.Listener() {
+                @Override
+                public void positionAdded(Position pos) {
+                    layersStale = true;
+                    filterOrder = null;
+                }
+                
+                @Override
+                public void positionRemoved(Position pos) {
+                    layersStale = true;
+                    filterOrder = null;
+                }
+            });
             initializeWindow();
             createComponents();
             layoutComponents();
@@ -158,16 +193,69 @@ public class DanceNow implements PlugIn {
             zField = new JTextField(3);
             tField = new JTextField(3);
             noteField = new JTextField(8);
+            filterField = new JTextField(12);
+            filterField.setToolTipText("Words or word prefixes that the note must contain; Next/Back, export and snapshots use only matching rows");
+            filterField.getDocument().addDocumentListener(new DocumentListener() {
+                @Override
+                public void insertUpdate(DocumentEvent e) {
+                    applyNoteFilter();
+                }
+                
+                @Override
+                public void removeUpdate(DocumentEvent e) {
+                    applyNoteFilter();
+                }
+                
+                @Override
+                public void changedUpdate(DocumentEvent e) {
+                    applyNoteFilter();
+                }
+            });
             
             goButton = new JButton("Go");
             addHereButton = new JButton("Add");
             nextButton = new JButton("Next >");
             backButton = new JButton("< Back");
+            nearestButton = new JButton("Nearest");
+            nearestButton.setToolTipText("Jump to the saved position closest to the view centre on this Z/T");
             removeButton = new JButton("Remove");
             clearButton = new JButton("Clear All");
             exportButton = new JButton("Export");
             snapshotButton = new JButton("Snapshot");
             loadButton = new JButton("Load");
+            toolsButton = new JButton("Tools");
+            toolsMenu = new JPopupMenu();
+            JMenuItem duplicatesItem = new JMenuItem("Find near-duplicates...");
+            duplicatesItem.addActionListener(e -> findNearDuplicates());
+            toolsMenu.add(duplicatesItem);
+            JMenuItem measureItem = new JMenuItem("Measure intensities...");
+            measureItem.addActionListener(e -> measureIntensities());
+            toolsMenu.add(measureItem);
+            JMenuItem refineItem = new JMenuItem("Refine positions...");
+            refineItem.addActionListener(e -> refinePositions());
+            toolsMenu.add(refineItem);
+            JMenuItem maximaItem = new JMenuItem("Positions from maxima...");
+            maximaItem.addActionListener(e -> generateFromMaxima());
+            toolsMenu.add(maximaItem);
+            JMenuItem trackItem = new JMenuItem("Track through time...");
+            trackItem.addActionListener(e -> trackPositions());
+            toolsMenu.add(trackItem);
+            toolsMenu.addSeparator();
+            JMenuItem estimateDriftItem = new JMenuItem("Estimate drift...");
+            estimateDriftItem.addActionListener(e -> estimateDrift());
+            toolsMenu.add(estimateDriftItem);
+            JMenuItem importDriftItem = new JMenuItem("Import drift table...");
+            importDriftItem.addActionListener(e -> importDrift());
+            toolsMenu.add(importDriftItem);
+            JMenuItem exportDriftItem = new JMenuItem("Export drift table...");
+            exportDriftItem.addActionListener(e -> exportDrift());
+            toolsMenu.add(exportDriftItem);
+            JMenuItem clearDriftItem = new JMenuItem("Clear drift table");
+            clearDriftItem.addActionListener(e -> {
+                setDriftTable(null);
+                statusLabel.setText("Drift correction off");
+            });
+            toolsMenu.add(clearDriftItem);
             
             statusLabel = new JLabel("No image open");
             currentPosLabel = new JLabel("Current: --");
@@ -199,7 +287,17 @@ public class DanceNow implements PlugIn {
                 }
             };
             
-            positionTable = new JTable(tableModel);
+            positionTable = new JTable(tableModel) {
+                @Override
+                public boolean isCellEditable(int row, int column) {
+                    // The thumbnail column shows the position column's model data but is never edited
+                    TableColumn viewColumn = getColumnModel().getColumn(column);
+                    if (viewColumn == thumbnails.getColumn() || measurementColumns.owns(viewColumn)) {
+                        return false;
+                    }
+                    return super.isCellEditable(row, column);
+                }
+            };
             positionTable.setSelectionMode(ListSelectionModel.SINGLE_INTERVAL_SELECTION);
             positionTable.setFont(fieldFont);
             positionTable.putClientProperty("terminateEditOnFocusLost", Boolean.TRUE);
@@ -208,6 +306,8 @@ public class DanceNow implements PlugIn {
             positionTable.getColumnModel().getColumn(0).setPreferredWidth(25);  // Row number column
             positionTable.getColumnModel().getColumn(1).setPreferredWidth(100); // Position column
             positionTable.getColumnModel().getColumn(2).setPreferredWidth(150); // Note column
+            thumbnails = new PositionThumbnails(positionTable, positions);
+            measurementColumns = new MeasurementColumns(positionTable, positions);
             
             // Add initial empty rows for user convenience
             for (int i = 0; i < 5; i++) {
@@ -275,6 +375,7 @@ public class DanceNow implements PlugIn {
             JPanel navPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
             navPanel.add(backButton);
             navPanel.add(nextButton);
+            navPanel.add(nearestButton);
             navContainer.add(navPanel, BorderLayout.NORTH);
             
             // Crosshair toggle panel (separate row)
@@ -308,6 +409,58 @@ public class DanceNow implements PlugIn {
                 }
             });
             crosshairPanel.add(crosshairToggle);
+            
+            // Thumbnail column toggle
+            JCheckBox thumbnailToggle = new JCheckBox("Thumbnails", false);
+            thumbnailToggle.addActionListener(e -> setThumbnailsVisible(thumbnailToggle.isSelected()));
+            crosshairPanel.add(thumbnailToggle);
+            
+            // Saved position markers on the image
+            markersToggle = new JCheckBox("Markers", false);
+            markersToggle.setToolTipText("Show the saved positions of the current Z/T on the image");
+            markersToggle.addActionListener(e -> updateMarkerOverlay());
+            crosshairPanel.add(markersToggle);
+            
+            // Coverage heatmap of the saved positions
+            heatmapToggle = new JCheckBox("Heatmap", false);
+            heatmapToggle.setToolTipText("Shade the image by how many saved positions fall in each area of the current Z/T");
+            heatmapToggle.addActionListener(e -> updateMarkerOverlay());
+            crosshairPanel.add(heatmapToggle);
+            
+            // Route-optimized visiting order toggle
+            optimizeOrderToggle = new JCheckBox("Optimized order", false);
+            optimizeOrderToggle.setToolTipText("Visit positions in a short tour that avoids Z/T switches and long pans");
+            optimizeOrderToggle.addActionListener(e -> {
+                if (optimizeOrderToggle.isSelected()) {
+                    optimizeVisitOrder();
+                } else {
+                    visitOrder = null;
+                    statusLabel.setText("Visiting positions in table order");
+                }
+            });
+            crosshairPanel.add(optimizeOrderToggle);
+            
+            // Background plane loading for virtual stacks
+            prefetchToggle = new JCheckBox("Prefetch", true);
+            prefetchToggle.setToolTipText("On virtual stacks, load the planes of the next and previous positions in the background");
+            prefetchToggle.addActionListener(e -> {
+                if (!prefetchToggle.isSelected()) {
+                    uninstallPrefetching();
+                }
+            });
+            crosshairPanel.add(prefetchToggle);
+            
+            // Linked windows that follow every navigation
+            syncToggle = new JCheckBox("Sync", false);
+            syncToggle.setToolTipText("Move a chosen group of other open images along with every navigation");
+            syncToggle.addActionListener(e -> {
+                if (syncToggle.isSelected()) {
+                    chooseSyncGroup();
+                } else {
+                    statusLabel.setText("Window sync off");
+                }
+            });
+            crosshairPanel.add(syncToggle);
             navContainer.add(crosshairPanel, BorderLayout.SOUTH);
             
             topPanel.add(navContainer, BorderLayout.SOUTH);
@@ -319,8 +472,16 @@ public class DanceNow implements PlugIn {
             listPanel.setBorder(BorderFactory.createTitledBorder("Position List"));
             JScrollPane scrollPane = new JScrollPane(positionTable);
             scrollPane.setPreferredSize(new Dimension(280, 180));  // Compact size
+            // Drop queued thumbnail renders for rows that scrolled out of view
+            scrollPane.getViewport().addChangeListener(e -> thumbnails.cancelOffscreen());
             listPanel.add(scrollPane, BorderLayout.CENTER);
             
+            // Note filter: limits Next/Back, export and snapshots to matching rows
+            JPanel filterPanel = new JPanel(new BorderLayout(5, 0));
+            filterPanel.add(new JLabel("Filter notes:"), BorderLayout.WEST);
+            filterPanel.add(filterField, BorderLayout.CENTER);
+            listPanel.add(filterPanel, BorderLayout.NORTH);
+            
             // List management buttons panel (Remove, Clear, Snapshot, Export, Load) - below the list
             JPanel listButtonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
             listButtonPanel.add(removeButton);
@@ -328,6 +489,7 @@ public class DanceNow implements PlugIn {
             listButtonPanel.add(snapshotButton);
             listButtonPanel.add(exportButton);
             listButtonPanel.add(loadButton);
+            listButtonPanel.add(toolsButton);
             listPanel.add(listButtonPanel, BorderLayout.SOUTH);
             
             mainPanel.add(listPanel, BorderLayout.CENTER);
@@ -358,6 +520,9 @@ public class DanceNow implements PlugIn {
             // Back button action
             backButton.addActionListener(e -> navigateToPreviousPosition());
             
+            // Nearest button action
+            nearestButton.addActionListener(e -> navigateToNearestPosition());
+            
             // Remove button action
             removeButton.addActionListener(e -> removeSelectedPosition());
             
@@ -373,6 +538,9 @@ public class DanceNow implements PlugIn {
             // Load button action
             loadButton.addActionListener(e -> loadPositions());
             
+            // Tools button shows the batch operations menu
+            toolsButton.addActionListener(e -> toolsMenu.show(toolsButton, 0, toolsButton.getHeight()));
+            
             // Add paste functionality to the table
             setupTablePasteHandler();
             
@@ -381,7 +549,7 @@ public class DanceNow implements PlugIn {
             
             // Table selection listener
             positionTable.getSelectionModel().addListSelectionListener(e -> {
-                if (!e.getValueIsAdjusting()) {
+                if (!e.getValueIsAdjusting() && !isSelectingNearest) {
                     updateFieldsFromSelectedRow();
                 }
             });
@@ -389,7 +557,11 @@ public class DanceNow implements PlugIn {
             // Table edit listener
             tableModel.addTableModelListener(e -> {
                 if (e.getType() == TableModelEvent.UPDATE && !isUpdatingTable) {
-                    updatePositionsFromTable();
+                    if (e.getFirstRow() == TableModelEvent.HEADER_ROW || e.getLastRow() == Integer.MAX_VALUE) {
+                        updatePositionsFromTable(); // Whole table changed
+                    } else {
+                        updatePositionsFromTable(e.getFirstRow(), e.getLastRow());
+                    }
                     // Also update the fields if the edited row is selected
                     int selectedRow = positionTable.getSelectedRow();
                     if (selectedRow >= 0 && selectedRow == e.getFirstRow()) {
@@ -398,6 +570,20 @@ public class DanceNow implements PlugIn {
                 }
             });
             
+            // Any change to the rows invalidates the optimized visiting order
+            tableModel.addTableModelListener(e -> {
+                if (visitOrder != null) {
+                    visitOrder = null;
+                    optimizeOrderToggle.setSelected(false);
+                    statusLabel.setText("Positions changed - back to table order");
+                }
+                // The note filter caches row indices; inserted or removed rows shift them even when
+                // the rows are empty, which the position list does not report
+                if (e.getType() != TableModelEvent.UPDATE || e.getLastRow() == Integer.MAX_VALUE) {
+                    filterOrder = null;
+                }
+            });
+            
             // Removed Enter key handler - only mouse clicks allowed for navigation
             
             // Update fields when window gains focus
@@ -417,8 +603,9 @@ public class DanceNow implements PlugIn {
                 @Override
                 public void mouseClicked(MouseEvent e) {
                     int column = positionTable.columnAtPoint(e.getPoint());
-                    if (column >= 0) {
-                        sortByColumn(column);
+                    TableColumn viewColumn = column >= 0 ? positionTable.getColumnModel().getColumn(column) : null;
+                    if (viewColumn != null && viewColumn != thumbnails.getColumn() && !measurementColumns.owns(viewColumn)) {
+                        sortByColumn(positionTable.convertColumnIndexToModel(column));
                     }
                 }
             });
@@ -427,6 +614,19 @@ public class DanceNow implements PlugIn {
             positionTable.getTableHeader().setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
         }
         
+        private void setThumbnailsVisible(boolean visible) {
+            TableColumnModel columnModel = positionTable.getColumnModel();
+            if (visible) {
+                columnModel.addColumn(thumbnails.getColumn());
+                columnModel.moveColumn(columnModel.getColumnCount() - 1, 1); // Right after the row number
+                positionTable.setRowHeight(PositionThumbnails.SIZE + 4);
+            } else {
+                columnModel.removeColumn(thumbnails.getColumn());
+                thumbnails.clear();
+                positionTable.setRowHeight(new JTable().getRowHeight());
+            }
+        }
+        
         private void sortByColumn(int column) {
             // Skip sorting if it's the row number column
             if (column == 0) {
@@ -610,21 +810,41 @@ public class DanceNow implements PlugIn {
                 tableModel.setValueAt("", row, 2);  // Clear note
             }
             
-            updatePositionsFromTable();
             statusLabel.setText("Cleared " + selectedRows.length + " row(s)");
         }
         
         private void handleInsertRow() {
             int selectedRow = positionTable.getSelectedRow();
             if (selectedRow >= 0) {
-                tableModel.insertRow(selectedRow, new Object[]{""});
+                // Mirror the insert in the list, so later rows keep their Position objects
+                positions.add(selectedRow, null);
+                tableModel.insertRow(selectedRow, new Object[]{"", "", ""});
+                renumberRows(selectedRow);
             } else {
+                positions.add(null);
                 tableModel.addRow(new Object[]{tableModel.getRowCount() + 1, "", ""});
             }
-            updatePositionsFromTable();
             statusLabel.setText("Inserted new row");
         }
         
+        /**
+         * Rewrites the row numbers from the given row on and notifies the table once.
+         */
+        private void renumberRows(int first) {
+            Vector<Vector<Object>> data = tableRows();
+            for (int i = first; i < data.size(); i++) {
+                data.get(i).set(0, i + 1);
+            }
+            if (first < data.size()) {
+                isUpdatingTable = true;
+                try {
+                    tableModel.fireTableRowsUpdated(first, data.size() - 1);
+                } finally {
+                    isUpdatingTable = false;
+                }
+            }
+        }
+        
         private void startPositionUpdater() {
             updateTimer = new Timer(true);
             updateTimer.scheduleAtFixedRate(new TimerTask() {
@@ -633,6 +853,7 @@ public class DanceNow implements PlugIn {
                     SwingUtilities.invokeLater(() -> {
                         updateCurrentPosition();
                         updateCrosshairOverlay();
+                        updateMarkerOverlay();
                         
                         // Also try to add mouse listeners to current image window for real-time updates
                         addImageWindowListeners();
@@ -709,6 +930,18 @@ public class DanceNow implements PlugIn {
                 
                 currentPosLabel.setText(String.format("Current: X=%d, Y=%d, Z=%d, T=%d", 
                     centerX, centerY, imp.getZ(), imp.getT()));
+                
+                // Select the nearest saved position once the view has come to rest
+                if (centerX != lastCenterX || centerY != lastCenterY || imp.getZ() != lastCenterZ || imp.getT() != lastCenterT) {
+                    viewMoving = lastCenterX >= 0;
+                    lastCenterX = centerX;
+                    lastCenterY = centerY;
+                    lastCenterZ = imp.getZ();
+                    lastCenterT = imp.getT();
+                } else if (viewMoving) {
+                    viewMoving = false;
+                    selectNearestRow(imp, srcRect);
+                }
             }
             
             statusLabel.setText(String.format("%s [%dx%dx%dx%d]", 
@@ -784,6 +1017,53 @@ public class DanceNow implements PlugIn {
             }
         }
         
+        /**
+         * Keeps the marker and heatmap layers on the current image while they are shown, moving
+         * them when another image becomes current, and repaints after the positions changed. The
+         * layers draw themselves from incrementally updated data, so nothing is rebuilt here.
+         */
+        private void updateMarkerOverlay() {
+            ImagePlus imp = WindowManager.getCurrentImage();
+            boolean showMarkers = markersToggle.isSelected() && imp != null;
+            boolean showHeatmap = heatmapToggle.isSelected() && imp != null;
+            if (markers != null && (!showMarkers || markers.getImage() != imp)) {
+                ImagePlus previous = markers.getImage();
+                PositionLayer.removeFrom(previous, PositionMarkers.class);
+                previous.draw();
+                markers = null;
+            }
+            if (heatmap != null && (!showHeatmap || heatmap.getImage() != imp || !heatmap.fits(imp))) {
+                ImagePlus previous = heatmap.getImage();
+                positions.removeListener(heatmap);
+                PositionLayer.removeFrom(previous, CoverageHeatmap.class);
+                previous.draw();
+                heatmap = null;
+            }
+            if (showHeatmap) {
+                if (heatmap == null) {
+                    // Binned once from the current list, then kept up to date edit by edit
+                    heatmap = new CoverageHeatmap(imp);
+                    positions.addListener(heatmap);
+                    layersStale = true;
+                }
+                heatmap.setDrift(driftTable);
+                heatmap.install(imp);
+            }
+            if (showMarkers) {
+                if (markers == null) {
+                    markers = new PositionMarkers(imp, positionIndex);
+                    layersStale = true;
+                }
+                markers.setDrift(driftTable);
+                // The overlay may have been replaced, e.g. when the crosshair was switched off
+                markers.install(imp);
+            }
+            if (layersStale && (showMarkers || showHeatmap)) {
+                layersStale = false;
+                imp.draw();
+            }
+        }
+        
         private void navigateToPosition() {
             ImagePlus imp = WindowManager.getCurrentImage();
             if (imp == null) {
@@ -817,51 +1097,26 @@ public class DanceNow implements PlugIn {
                     statusLabel.setText("T adjusted to valid range");
                 }
                 
-                navigateToPosition(imp, x, y, z, t);
-                statusLabel.setText("Moved to: X=" + x + ", Y=" + y + ", Z=" + z + ", T=" + t);
+                // The fields hold frame 1 coordinates, like the table; follow the drift as Next/Back do
+                double millis = navigateToPosition(imp, x + driftX(t), y + driftY(t), z, t);
+                statusLabel.setText(String.format("Moved to: X=%d, Y=%d, Z=%d, T=%d (%.0f ms)", x, y, z, t, millis));
                 
             } catch (NumberFormatException e) {
                 statusLabel.setText("Please enter valid numbers");
             }
         }
         
-        private void navigateToPosition(ImagePlus imp, int x, int y, int z, int t) {
-            ImageWindow win = imp.getWindow();
-            if (win == null) return;
-            
-            ImageCanvas canvas = win.getCanvas();
-            if (canvas == null) return;
-            
-            // Store current zoom and view settings
-            double magnification = canvas.getMagnification();
-            Rectangle srcRect = canvas.getSrcRect();
-            
-            // Set Z and T position
-            if (imp.getNSlices() > 1) {
-                imp.setZ(z);
-            }
-            if (imp.getNFrames() > 1) {
-                imp.setT(t);
+        /**
+         * Moves the view as one transaction (see {@link SyncGroup#moveView}) and passes the
+         * navigation on to the linked windows. Returns the time taken in milliseconds.
+         */
+        private double navigateToPosition(ImagePlus imp, int x, int y, int z, int t) {
+            long start = System.nanoTime();
+            SyncGroup.moveView(imp, x, y, z, t);
+            if (syncGroup != null && syncToggle.isSelected()) {
+                syncGroup.navigate(imp, x, y, z, t);
             }
-            
-            // Calculate new source rectangle to center on the specified coordinates
-            int newSrcX = x - srcRect.width / 2;
-            int newSrcY = y - srcRect.height / 2;
-            
-            // Ensure the source rectangle stays within image bounds
-            newSrcX = Math.max(0, Math.min(newSrcX, imp.getWidth() - srcRect.width));
-            newSrcY = Math.max(0, Math.min(newSrcY, imp.getHeight() - srcRect.height));
-            
-            // Set the new source rectangle
-            srcRect.x = newSrcX;
-            srcRect.y = newSrcY;
-            
-            // Apply the changes
-            canvas.setSourceRect(srcRect);
-            canvas.setMagnification(magnification);
-            
-            // Update the display
-            imp.updateAndDraw();
+            return (System.nanoTime() - start) / 1e6;
         }
         
         private void addCurrentPosition() {
@@ -875,27 +1130,16 @@ public class DanceNow implements PlugIn {
             if (win != null && win.getCanvas() != null) {
                 ImageCanvas canvas = win.getCanvas();
                 Rectangle srcRect = canvas.getSrcRect();
-                int centerX = srcRect.x + srcRect.width / 2;
-                int centerY = srcRect.y + srcRect.height / 2;
+                int centerX = srcRect.x + srcRect.width / 2 - driftX(imp.getT());
+                int centerY = srcRect.y + srcRect.height / 2 - driftY(imp.getT());
                 
                 String note = noteField.getText().trim();
                 Position pos = new Position(centerX, centerY, imp.getZ(), imp.getT(), note);
                 
-                // Check for duplicate position (same X, Y, Z, T)
-                boolean isDuplicate = false;
-                int duplicateRow = -1;
-                for (int i = 0; i < positions.size(); i++) {
-                    Position existingPos = positions.get(i);
-                    if (existingPos != null && 
-                        existingPos.x == pos.x && 
-                        existingPos.y == pos.y && 
-                        existingPos.z == pos.z && 
-                        existingPos.t == pos.t) {
-                        isDuplicate = true;
-                        duplicateRow = i + 1; // Row number for display (1-based)
-                        break;
-                    }
-                }
+                // Check for duplicate position (same X, Y, Z, T) through the position index
+                Position nearest = positionIndex.nearest(pos.z, pos.t, pos.x, pos.y);
+                boolean isDuplicate = nearest != null && nearest.x == pos.x && nearest.y == pos.y;
+                int duplicateRow = isDuplicate ? positions.rowOf(nearest) + 1 : -1; // Row number for display (1-based)
                 
                 // Show warning if duplicate found
                 if (isDuplicate) {
@@ -956,6 +1200,11 @@ public class DanceNow implements PlugIn {
                 statusLabel.setText("No positions in list");
                 return;
             }
+            int[] order = navigationOrder();
+            if (order != null) {
+                navigateAlongOrder(order, 1);
+                return;
+            }
             
             // Find next valid position
             int startIndex = currentPositionIndex;
@@ -981,6 +1230,11 @@ public class DanceNow implements PlugIn {
                 statusLabel.setText("No positions in list");
                 return;
             }
+            int[] order = navigationOrder();
+            if (order != null) {
+                navigateAlongOrder(order, -1);
+                return;
+            }
             
             // Find previous valid position
             int startIndex = currentPositionIndex;
@@ -1001,6 +1255,147 @@ public class DanceNow implements PlugIn {
             statusLabel.setText("No valid positions in list");
         }
         
+        /**
+         * Steps through the optimized or filtered order; the stored rows are never reordered.
+         */
+        private void navigateAlongOrder(int[] order, int step) {
+            if (order.length == 0) {
+                statusLabel.setText("No positions match the note filter");
+                return;
+            }
+            int at = -1;
+            for (int i = 0; i < order.length; i++) {
+                if (order[i] == currentPositionIndex) {
+                    at = i;
+                    break;
+                }
+            }
+            int next = at < 0 ? (step > 0 ? 0 : order.length - 1)
+                              : (at + step + order.length) % order.length;
+            currentPositionIndex = order[next];
+            positionTable.setRowSelectionInterval(currentPositionIndex, currentPositionIndex);
+            navigateToPosition(positions.get(currentPositionIndex));
+        }
+        
+        /**
+         * Computes the visiting tour in the background. A plane change costs as much as panning
+         * across the whole image, so the tour finishes a Z/T plane before moving on.
+         */
+        private void optimizeVisitOrder() {
+            List<Integer> rows = new ArrayList<>();
+            List<Position> valid = new ArrayList<>();
+            for (int i = 0; i < positions.size(); i++) {
+                if (positions.get(i) != null) {
+                    rows.add(i);
+                    valid.add(positions.get(i));
+                }
+            }
+            if (valid.size() < 3) {
+                optimizeOrderToggle.setSelected(false);
+                statusLabel.setText("Need at least 3 positions to optimize the order");
+                return;
+            }
+            ImagePlus imp = WindowManager.getCurrentImage();
+            double planeCost = imp != null ? Math.max(imp.getWidth(), imp.getHeight()) : 1000;
+            
+            statusLabel.setText("Optimizing visiting order...");
+            optimizeOrderToggle.setEnabled(false);
+            new SwingWorker<int[], Void>() {
+                @Override
+                protected int[] doInBackground() {
+                    return VisitOrder.optimize(valid, planeCost);
+                }
+                
+                @Override
+                protected void done() {
+                    optimizeOrderToggle.setEnabled(true);
+                    try {
+                        int[] tour = get();
+                        for (int i = 0; i < rows.size(); i++) {
+                            if (rows.get(i) >= positions.size() || positions.get(rows.get(i)) != valid.get(i)) {
+                                // The list was edited while the tour was being computed
+                                optimizeOrderToggle.setSelected(false);
+                                statusLabel.setText("Positions changed - order not applied");
+                                return;
+                            }
+                        }
+                        int[] identity = new int[tour.length];
+                        for (int i = 0; i < identity.length; i++) {
+                            identity[i] = i;
+                        }
+                        double before = VisitOrder.length(valid, identity, planeCost);
+                        double after = VisitOrder.length(valid, tour, planeCost);
+                        visitOrder = new int[tour.length];
+                        for (int i = 0; i < tour.length; i++) {
+                            visitOrder[i] = rows.get(tour[i]);
+                        }
+                        statusLabel.setText(String.format("Optimized order: %.0f%% shorter route",
+                            before > 0 ? 100.0 * (before - after) / before : 0));
+                    } catch (Exception ex) {
+                        optimizeOrderToggle.setSelected(false);
+                        statusLabel.setText("Could not optimize order: " + ex.getMessage());
+                    }
+                }
+            }.execute();
+        }
+        
+        /**
+         * Jumps to the saved position closest to the view centre on the current Z/T.
+         */
+        private void navigateToNearestPosition() {
+            ImagePlus imp = WindowManager.getCurrentImage();
+            if (imp == null || imp.getWindow() == null || imp.getWindow().getCanvas() == null) {
+                statusLabel.setText("No image open");
+                return;
+            }
+            Rectangle srcRect = imp.getWindow().getCanvas().getSrcRect();
+            Position nearest = positionIndex.nearest(imp.getZ(), imp.getT(),
+                srcRect.x + srcRect.width / 2 - driftX(imp.getT()), srcRect.y + srcRect.height / 2 - driftY(imp.getT()));
+            int row = positions.rowOf(nearest);
+            if (row < 0) {
+                statusLabel.setText("No saved positions on this Z/T");
+                return;
+            }
+            currentPositionIndex = row;
+            positionTable.setRowSelectionInterval(row, row);
+            positionTable.scrollRectToVisible(positionTable.getCellRect(row, 0, true));
+            navigateToPosition(nearest);
+        }
+        
+        /**
+         * Selects the row of the saved position nearest to the resting view centre, if that position
+         * is in view. The view itself is not moved.
+         */
+        private void selectNearestRow(ImagePlus imp, Rectangle srcRect) {
+            if (positionTable.isEditing()) {
+                return;
+            }
+            int dx = driftX(imp.getT()), dy = driftY(imp.getT());
+            double centerX = srcRect.x + srcRect.width / 2 - dx, centerY = srcRect.y + srcRect.height / 2 - dy;
+            Position nearest = positionIndex.nearest(imp.getZ(), imp.getT(), centerX, centerY);
+            if (nearest == null || !srcRect.contains(nearest.x + dx, nearest.y + dy)) {
+                return;
+            }
+            // Keep the current row when it is just as close (e.g. duplicates of the same point)
+            int selected = positionTable.getSelectedRow();
+            Position current = selected >= 0 && selected < positions.size() ? positions.get(selected) : null;
+            if (current != null && current.z == nearest.z && current.t == nearest.t
+                    && Math.hypot(current.x - centerX, current.y - centerY) <= Math.hypot(nearest.x - centerX, nearest.y - centerY)) {
+                return;
+            }
+            int row = positions.rowOf(nearest);
+            if (row >= 0) {
+                // Only highlight the row: the fields, and the note kept for quick entry, stay as typed
+                isSelectingNearest = true;
+                try {
+                    positionTable.setRowSelectionInterval(row, row);
+                } finally {
+                    isSelectingNearest = false;
+                }
+                positionTable.scrollRectToVisible(positionTable.getCellRect(row, 0, true));
+            }
+        }
+        
         private void navigateToPosition(Position pos) {
             if (pos == null) {
                 statusLabel.setText("Empty position - skipping");
@@ -1025,145 +1420,1293 @@ public class DanceNow implements PlugIn {
             int adjustedZ = Math.max(1, Math.min(pos.z, imp.getNSlices()));
             int adjustedT = Math.max(1, Math.min(pos.t, imp.getNFrames()));
             
-            navigateToPosition(imp, pos.x, pos.y, adjustedZ, adjustedT);
+            // With a drift table, the saved X,Y are frame 1 coordinates shifted to the frame shown
+            double millis = navigateToPosition(imp, pos.x + driftX(adjustedT), pos.y + driftY(adjustedT), adjustedZ, adjustedT);
+            String latency = String.format(" (%.0f ms)", millis);
             
             if (adjustedZ != pos.z || adjustedT != pos.t) {
-                statusLabel.setText("Moved to: " + pos.x + "," + pos.y + "," + adjustedZ + "," + adjustedT + " (Z/T adjusted)");
+                statusLabel.setText("Moved to: " + pos.x + "," + pos.y + "," + adjustedZ + "," + adjustedT + " (Z/T adjusted)" + latency);
             } else {
                 statusLabel.setText("Moved to: " + pos.toString() + 
-                    (pos.note != null && !pos.note.isEmpty() ? " [" + pos.note + "]" : ""));
+                    (pos.note != null && !pos.note.isEmpty() ? " [" + pos.note + "]" : "") + latency);
             }
+            prefetchAround(imp);
         }
         
-        private void parseBulkPositions(String text) {
-            String[] lines = text.split("\n");
-            int addedCount = 0;
-            int errorCount = 0;
+        /**
+         * Gives every open image its original stack back.
+         */
+        private void uninstallPrefetching() {
+            int[] ids = WindowManager.getIDList();
+            if (ids == null) {
+                return;
+            }
+            for (int id : ids) {
+                ImagePlus imp = WindowManager.getImage(id);
+                if (imp != null) {
+                    PrefetchingStack.uninstall(imp);
+                }
+            }
+        }
+
+        /**
+         * Queues the planes of the positions around the current one in the visiting order, nearest
+         * first, so that the next Next/Back finds its plane in memory. Only virtual stacks are read
+         * lazily, so in-memory images are left alone.
+         */
+        private void prefetchAround(ImagePlus imp) {
+            if (!prefetchToggle.isSelected() || !imp.getStack().isVirtual() || currentPositionIndex < 0) {
+                return;
+            }
+            PrefetchingStack stack = PrefetchingStack.install(imp, Math.min(512L << 20, IJ.maxMemory() / 8));
+            if (stack == null) {
+                return;
+            }
             
-            for (int i = 0; i < lines.length; i++) {
-                String line = lines[i].trim();
-                if (!line.isEmpty()) {
-                    try {
-                        // Split by comma, space, or tab (handle up to 5 parts for note)
-                        String[] parts = line.split("[,\\s\\t]+", 5);
-                        if (parts.length >= 4) {
-                            int x = Integer.parseInt(parts[0].trim());
-                            int y = Integer.parseInt(parts[1].trim());
-                            int z = Integer.parseInt(parts[2].trim());
-                            int t = Integer.parseInt(parts[3].trim());
-                            
-                            // Get note if present
-                            String note = "";
-                            if (parts.length >= 5) {
-                                note = parts[4].trim();
-                            }
-                            
-                            // Validate coordinates
-                            ImagePlus imp = WindowManager.getCurrentImage();
-                            if (imp != null) {
-                                if (x < 1 || x > imp.getWidth() || y < 1 || y > imp.getHeight() ||
-                                    z < 1 || z > imp.getNSlices() || t < 1 || t > imp.getNFrames()) {
-                                    errorCount++;
-                                    continue;
-                                }
-                            }
-                            
-                            Position pos = new Position(x, y, z, t, note);
-                            
-                            // Find first empty row or add at the end
-                            int insertRow = -1;
-                            for (int j = 0; j < positions.size(); j++) {
-                                if (positions.get(j) == null) {
-                                    insertRow = j;
-                                    break;
-                                }
-                            }
-                            
-                            if (insertRow >= 0) {
-                                // Replace empty position
-                                positions.set(insertRow, pos);
-                                tableModel.setValueAt(pos.toString(), insertRow, 1);
-                                tableModel.setValueAt(note, insertRow, 2);
-                            } else {
-                                // Add new row at the end
-                                positions.add(pos);
-                                tableModel.addRow(new Object[]{tableModel.getRowCount() + 1, pos.toString(), note});
-                            }
-                            
-                            addedCount++;
-                        } else {
-                            errorCount++;
-                        }
-                    } catch (NumberFormatException e) {
-                        errorCount++;
+            List<Integer> order = new ArrayList<>();
+            int[] navigation = navigationOrder();
+            if (navigation != null) {
+                for (int row : navigation) {
+                    order.add(row);
+                }
+            } else {
+                for (int i = 0; i < positions.size(); i++) {
+                    if (positions.get(i) != null) {
+                        order.add(i);
                     }
                 }
             }
-            
-            String message = "Added " + addedCount + " positions.";
-            if (errorCount > 0) {
-                message += " " + errorCount + " lines had errors and were skipped.";
+            int at = order.indexOf(currentPositionIndex);
+            if (at < 0) {
+                return;
             }
-            statusLabel.setText(message);
-        }
-        
-        private void updateFieldsFromSelectedRow() {
-            int selectedRow = positionTable.getSelectedRow();
-            if (selectedRow >= 0 && selectedRow < positions.size()) {
-                currentPositionIndex = selectedRow;
-                Position pos = positions.get(selectedRow);
-                if (pos != null) {
-                    xField.setText(String.valueOf(pos.x));
-                    yField.setText(String.valueOf(pos.y));
-                    zField.setText(String.valueOf(pos.z));
-                    tField.setText(String.valueOf(pos.t));
-                    noteField.setText(pos.note != null ? pos.note : "");
-                } else {
-                    // Clear fields for empty rows
-                    xField.setText("");
-                    yField.setText("");
-                    zField.setText("");
-                    tField.setText("");
-                    noteField.setText("");
+            
+            // A composite image shows every channel at once; otherwise only the current channel is read
+            boolean allChannels = imp.isComposite() && ((CompositeImage) imp).getMode() == CompositeImage.COMPOSITE;
+            int firstChannel = allChannels ? 1 : imp.getC();
+            int lastChannel = allChannels ? imp.getNChannels() : imp.getC();
+            List<Integer> indices = new ArrayList<>();
+            for (int step = 1; step <= PREFETCH_POSITIONS && step < order.size(); step++) {
+                for (int direction : new int[]{1, -1}) {
+                    Position pos = positions.get(order.get(Math.floorMod(at + direction * step, order.size())));
+                    int z = Math.max(1, Math.min(pos.z, imp.getNSlices()));
+                    int t = Math.max(1, Math.min(pos.t, imp.getNFrames()));
+                    for (int c = firstChannel; c <= lastChannel; c++) {
+                        int index = imp.getStackIndex(c, z, t);
+                        if (!indices.contains(index)) {
+                            indices.add(index);
+                        }
+                    }
                 }
             }
+            int[] stackIndices = new int[indices.size()];
+            for (int i = 0; i < stackIndices.length; i++) {
+                stackIndices[i] = indices.get(i);
+            }
+            stack.prefetch(stackIndices);
         }
         
-        private void updatePositionsFromTable() {
-            positions.clear();
-            for (int i = 0; i < tableModel.getRowCount(); i++) {
-                Object valueObj = tableModel.getValueAt(i, 1);
-                if (valueObj == null) {
-                    positions.add(null); // Add null for empty rows
-                    continue;
-                }
-                
-                String value = valueObj.toString().trim();
-                if (value.isEmpty()) {
-                    positions.add(null); // Add null for empty rows
-                    continue;
+        /**
+         * Asks for a tolerance, finds groups of positions within it in the background and shows
+         * them for merging.
+         */
+        private void findNearDuplicates() {
+            JTextField radiusField = new JTextField(duplicateRadius, 5);
+            JTextField dzField = new JTextField(duplicateDZ, 5);
+            JTextField dtField = new JTextField(duplicateDT, 5);
+            JPanel panel = new JPanel(new GridLayout(3, 2, 5, 5));
+            panel.add(new JLabel("XY radius (pixels):"));
+            panel.add(radiusField);
+            panel.add(new JLabel("Max Z difference:"));
+            panel.add(dzField);
+            panel.add(new JLabel("Max T difference:"));
+            panel.add(dtField);
+            if (JOptionPane.showConfirmDialog(this, panel, "Find Near-Duplicates",
+                    JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+                return;
+            }
+            
+            double radius;
+            int dz, dt;
+            try {
+                radius = Double.parseDouble(radiusField.getText().trim());
+                dz = Integer.parseInt(dzField.getText().trim());
+                dt = Integer.parseInt(dtField.getText().trim());
+                if (radius < 0 || dz < 0 || dt < 0) {
+                    throw new NumberFormatException();
                 }
-                
-                try {
-                    String[] parts = value.split(",");
-                    if (parts.length == 4) {
-                        int x = Integer.parseInt(parts[0].trim());
-                        int y = Integer.parseInt(parts[1].trim());
-                        int z = Integer.parseInt(parts[2].trim());
-                        int t = Integer.parseInt(parts[3].trim());
-                        
-                        // Get note from second column
-                        Object noteObj = tableModel.getValueAt(i, 2);
-                        String note = noteObj != null ? noteObj.toString() : "";
-                        
-                        positions.add(new Position(x, y, z, t, note));
-                    } else {
-                        positions.add(null); // Invalid format, treat as empty
+            } catch (NumberFormatException e) {
+                JOptionPane.showMessageDialog(this,
+                    "Please enter a radius >= 0 and Z/T differences >= 0.",
+                    "Invalid Tolerance", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            duplicateRadius = radiusField.getText().trim();
+            duplicateDZ = dzField.getText().trim();
+            duplicateDT = dtField.getText().trim();
+            
+            if (positionTable.isEditing()) {
+                positionTable.getCellEditor().stopCellEditing();
+            }
+            List<Position> snapshot = new ArrayList<>(positions);
+            statusLabel.setText("Searching for near-duplicates...");
+            new SwingWorker<List<int[]>, Void>() {
+                @Override
+                protected List<int[]> doInBackground() {
+                    return NearDuplicates.find(snapshot, radius, dz, dt);
+                }
+                
+                @Override
+                protected void done() {
+                    try {
+                        List<int[]> groups = get();
+                        if (!samePositions(snapshot)) {
+                            statusLabel.setText("Positions changed during the search - please search again");
+                            return;
+                        }
+                        if (groups.isEmpty()) {
+                            statusLabel.setText("No near-duplicates found");
+                            return;
+                        }
+                        statusLabel.setText("Found " + groups.size() + " group(s) of near-duplicates");
+                        showNearDuplicates(groups);
+                    } catch (Exception ex) {
+                        statusLabel.setText("Near-duplicate search failed: " + ex.getMessage());
+                    }
+                }
+            }.execute();
+        }
+        
+        /**
+         * True if every row still holds the same Position object as in the snapshot.
+         */
+        private boolean samePositions(List<Position> snapshot) {
+            if (snapshot.size() != positions.size()) {
+                return false;
+            }
+            for (int i = 0; i < snapshot.size(); i++) {
+                if (snapshot.get(i) != positions.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * Lists the groups; selecting one shows its first position. Merging replaces each group by
+         * its centroid in a single table update.
+         */
+        private void showNearDuplicates(List<int[]> groups) {
+            List<Position> snapshot = new ArrayList<>(positions);
+            DefaultTableModel model = new DefaultTableModel(new String[]{"#", "Count", "Rows", "Merged"}, 0) {
+                @Override
+                public boolean isCellEditable(int row, int column) {
+                    return false;
+                }
+            };
+            for (int g = 0; g < groups.size(); g++) {
+                int[] group = groups.get(g);
+                StringBuilder rows = new StringBuilder();
+                for (int k = 0; k < group.length && k < 10; k++) {
+                    rows.append(k > 0 ? ", " : "").append(group[k] + 1);
+                }
+                if (group.length > 10) {
+                    rows.append(", ...");
+                }
+                model.addRow(new Object[]{g + 1, group.length, rows.toString(),
+                    NearDuplicates.merge(positions, group).toStringWithNote()});
+            }
+            
+            JDialog dialog = new JDialog(this, "Near-Duplicates", true);
+            JTable groupTable = new JTable(model);
+            groupTable.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+            groupTable.getColumnModel().getColumn(0).setPreferredWidth(30);
+            groupTable.getColumnModel().getColumn(1).setPreferredWidth(45);
+            groupTable.getColumnModel().getColumn(2).setPreferredWidth(150);
+            groupTable.getColumnModel().getColumn(3).setPreferredWidth(200);
+            groupTable.getSelectionModel().addListSelectionListener(e -> {
+                int selected = groupTable.getSelectedRow();
+                if (!e.getValueIsAdjusting() && selected >= 0 && samePositions(snapshot)) {
+                    int row = groups.get(selected)[0];
+                    currentPositionIndex = row;
+                    positionTable.setRowSelectionInterval(row, row);
+                    positionTable.scrollRectToVisible(positionTable.getCellRect(row, 0, true));
+                    navigateToPosition(positions.get(row));
+                }
+            });
+            
+            JButton mergeSelectedButton = new JButton("Merge Selected");
+            JButton mergeAllButton = new JButton("Merge All");
+            JButton closeButton = new JButton("Close");
+            mergeSelectedButton.addActionListener(e -> {
+                int[] selected = groupTable.getSelectedRows();
+                if (selected.length == 0) {
+                    JOptionPane.showMessageDialog(dialog, "Select the groups to merge first.",
+                        "Merge", JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                List<int[]> chosen = new ArrayList<>();
+                for (int g : selected) {
+                    chosen.add(groups.get(g));
+                }
+                dialog.dispose();
+                mergeNearDuplicates(snapshot, chosen);
+            });
+            mergeAllButton.addActionListener(e -> {
+                dialog.dispose();
+                mergeNearDuplicates(snapshot, groups);
+            });
+            closeButton.addActionListener(e -> dialog.dispose());
+            
+            JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
+            buttonPanel.add(mergeSelectedButton);
+            buttonPanel.add(mergeAllButton);
+            buttonPanel.add(closeButton);
+            
+            dialog.setLayout(new BorderLayout());
+            JScrollPane scrollPane = new JScrollPane(groupTable);
+            scrollPane.setPreferredSize(new Dimension(450, 250));
+            dialog.add(scrollPane, BorderLayout.CENTER);
+            dialog.add(buttonPanel, BorderLayout.SOUTH);
+            dialog.pack();
+            dialog.setLocationRelativeTo(this);
+            dialog.setVisible(true);
+        }
+        
+        /**
+         * Replaces each group by its merged position in the group's first row and removes the other
+         * rows. The position list and the table rows are compacted in one pass each, and the table
+         * is notified once.
+         */
+        private void mergeNearDuplicates(List<Position> snapshot, List<int[]> groups) {
+            if (!samePositions(snapshot)) {
+                statusLabel.setText("Positions changed - near-duplicates not merged");
+                return;
+            }
+            if (positionTable.isEditing()) {
+                positionTable.getCellEditor().stopCellEditing();
+            }
+            
+            Vector<Vector<Object>> data = tableRows();
+            boolean[] drop = new boolean[positions.size()];
+            int removed = 0;
+            for (int[] group : groups) {
+                Position merged = NearDuplicates.merge(positions, group);
+                positions.set(group[0], merged);
+                data.get(group[0]).set(1, merged.toString());
+                data.get(group[0]).set(2, merged.note);
+                for (int k = 1; k < group.length; k++) {
+                    drop[group[k]] = true;
+                    removed++;
+                }
+            }
+            positions.removeRows(drop);
+            List<Vector<Object>> kept = new ArrayList<>(positions.size());
+            for (int i = 0; i < data.size(); i++) {
+                if (!drop[i]) {
+                    kept.add(data.get(i));
+                }
+            }
+            data.clear();
+            data.addAll(kept);
+            for (int i = 0; i < data.size(); i++) {
+                data.get(i).set(0, i + 1);
+            }
+            
+            isUpdatingTable = true;
+            try {
+                tableModel.fireTableDataChanged();
+            } finally {
+                isUpdatingTable = false;
+            }
+            currentPositionIndex = -1;
+            statusLabel.setText("Merged " + groups.size() + " group(s), removed " + removed + " row(s)");
+        }
+        
+        /**
+         * Measures mean, max, integrated intensity and background around every position in every
+         * channel, streaming the results to a CSV file, and optionally shows them in the table.
+         */
+        private void measureIntensities() {
+            if (positions.stream().allMatch(p -> p == null)) {
+                JOptionPane.showMessageDialog(this, "No positions to measure. Please add positions first.",
+                    "No Positions", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            ImagePlus imp = WindowManager.getCurrentImage();
+            if (imp == null) {
+                JOptionPane.showMessageDialog(this, "No image open. Please open an image first.",
+                    "No Image", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            
+            JTextField widthField = new JTextField(measureWidth, 5);
+            JTextField heightField = new JTextField(measureHeight, 5);
+            JTextField borderField = new JTextField(measureBorder, 5);
+            JCheckBox showInTable = new JCheckBox("Show results in table", true);
+            JPanel panel = new JPanel(new GridLayout(4, 2, 5, 5));
+            panel.add(new JLabel("Window width (pixels):"));
+            panel.add(widthField);
+            panel.add(new JLabel("Window height (pixels):"));
+            panel.add(heightField);
+            panel.add(new JLabel("Background border (pixels):"));
+            panel.add(borderField);
+            panel.add(showInTable);
+            if (JOptionPane.showConfirmDialog(this, panel, "Measure Intensities",
+                    JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+                return;
+            }
+            
+            SnapshotSettings settings = new SnapshotSettings();
+            int border;
+            try {
+                settings.width = Integer.parseInt(widthField.getText().trim());
+                settings.height = Integer.parseInt(heightField.getText().trim());
+                border = Integer.parseInt(borderField.getText().trim());
+                if (settings.width < 3 || settings.height < 3 || border < 1
+                        || 2 * border >= Math.min(settings.width, settings.height)) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                JOptionPane.showMessageDialog(this,
+                    "Please enter a window of at least 3 x 3 pixels and a background border\n" +
+                    "of at least 1 pixel that leaves an inner area.",
+                    "Invalid Window", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            measureWidth = widthField.getText().trim();
+            measureHeight = heightField.getText().trim();
+            measureBorder = borderField.getText().trim();
+            
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setSelectedFile(new File("intensities.csv"));
+            if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            File csvFile = fileChooser.getSelectedFile();
+            if (csvFile.exists() && JOptionPane.showConfirmDialog(this,
+                    csvFile.getName() + " already exists. Overwrite it?", "Measure Intensities",
+                    JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE) != JOptionPane.YES_OPTION) {
+                return;
+            }
+            
+            if (positionTable.isEditing()) {
+                positionTable.getCellEditor().stopCellEditing();
+            }
+            List<Position> snapshot = new ArrayList<>(positions);
+            settings.drift = driftTable;
+            boolean show = showInTable.isSelected();
+            new ProgressWorker<float[][]>("Measuring intensities") {
+                @Override
+                protected float[][] doInBackground() throws IOException {
+                    SnapshotEngine engine = new SnapshotEngine(imp, settings);
+                    try (Writer writer = new BufferedWriter(new FileWriter(csvFile))) {
+                        IntensityMeasurement measurement = new IntensityMeasurement(engine, snapshot, border);
+                        return measurement.run(writer, listener(), this::isCancelled);
+                    } finally {
+                        engine.close();
+                    }
+                }
+                
+                @Override
+                void cancelled() {
+                    statusLabel.setText("Measurement cancelled - " + csvFile.getName() + " is incomplete");
+                }
+                
+                @Override
+                void finished() {
+                    try {
+                        float[][] results = get();
+                        if (show) {
+                            measurementColumns.show(snapshot, results, imp.getNChannels());
+                        } else {
+                            measurementColumns.hide();
+                        }
+                        statusLabel.setText("Measured " + snapshot.stream().filter(p -> p != null).count()
+                            + " positions to " + csvFile.getName());
+                    } catch (Exception ex) {
+                        Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                        JOptionPane.showMessageDialog(DanceNowWindow.this,
+                            "Error measuring intensities: " + cause.getMessage(),
+                            "Measurement Error", JOptionPane.ERROR_MESSAGE);
+                        statusLabel.setText("Measurement failed");
+                    }
+                }
+            }.execute();
+        }
+        
+        /**
+         * Background job with a progress monitor whose Cancel stops it. Jobs publish
+         * (completed, total) pairs through {@link #listener()} and check isCancelled() between
+         * steps; the worker is cancelled without interrupt, since an interrupted read would close
+         * the file channels of the engine. The engine is built in doInBackground, because opening
+         * its reader touches the file.
+         */
+        private abstract class ProgressWorker<T> extends SwingWorker<T, Integer> {
+            private final String label;
+            private final ProgressMonitor monitor;
+            
+            ProgressWorker(String label) {
+                this.label = label;
+                this.monitor = new ProgressMonitor(DanceNowWindow.this, label, "", 0, 100);
+                statusLabel.setText(label + "...");
+            }
+            
+            SnapshotJob.ProgressListener listener() {
+                return (completed, total) -> publish(completed, total);
+            }
+            
+            @Override
+            protected void process(List<Integer> chunks) {
+                if (monitor.isCanceled()) {
+                    cancel(false);
+                    return;
+                }
+                int n = chunks.size();
+                if (n >= 2) {
+                    int completed = chunks.get(n - 2), total = chunks.get(n - 1);
+                    monitor.setProgress((int) (completed * 100.0 / total));
+                    monitor.setNote(completed + " of " + total);
+                    statusLabel.setText(String.format("%s... %d/%d", label, completed, total));
+                }
+            }
+            
+            @Override
+            protected final void done() {
+                monitor.close();
+                if (isCancelled()) {
+                    cancelled();
+                } else {
+                    finished();
+                }
+            }
+            
+            void cancelled() {
+                statusLabel.setText(label + " cancelled");
+            }
+            
+            /**
+             * Runs on the event thread after the job ended without being cancelled.
+             */
+            abstract void finished();
+        }
+        
+        /**
+         * The table model's row vectors, for batched edits that notify the table once.
+         */
+        @SuppressWarnings("unchecked")
+        private Vector<Vector<Object>> tableRows() {
+            return (Vector<Vector<Object>>) (Vector<?>) tableModel.getDataVector();
+        }
+        
+        /**
+         * Puts replacements[i] into row i wherever it is not null, updating the list and the table
+         * rows directly and notifying the table once.
+         */
+        private void replacePositions(Position[] replacements) {
+            if (positionTable.isEditing()) {
+                positionTable.getCellEditor().stopCellEditing();
+            }
+            Vector<Vector<Object>> data = tableRows();
+            for (int i = 0; i < replacements.length && i < positions.size(); i++) {
+                Position pos = replacements[i];
+                if (pos != null) {
+                    positions.set(i, pos);
+                    data.get(i).set(1, pos.toString());
+                    data.get(i).set(2, pos.note);
+                }
+            }
+            isUpdatingTable = true;
+            try {
+                tableModel.fireTableRowsUpdated(0, Math.max(0, tableModel.getRowCount() - 1));
+            } finally {
+                isUpdatingTable = false;
+            }
+        }
+        
+        /**
+         * Moves every position to the intensity peak within a radius on its own plane, in the
+         * background, and applies all moves as one table update.
+         */
+        private void refinePositions() {
+            if (positions.stream().allMatch(p -> p == null)) {
+                JOptionPane.showMessageDialog(this, "No positions to refine. Please add positions first.",
+                    "No Positions", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            ImagePlus imp = WindowManager.getCurrentImage();
+            if (imp == null) {
+                JOptionPane.showMessageDialog(this, "No image open. Please open an image first.",
+                    "No Image", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            
+            JTextField radiusField = new JTextField(refineRadius, 5);
+            JComboBox<PositionRefiner.Method> methodCombo = new JComboBox<>(PositionRefiner.Method.values());
+            methodCombo.setSelectedItem(refineMethod);
+            JCheckBox subpixelBox = new JCheckBox("Keep sub-pixel coordinates (exported to CSV)", refineSubpixel);
+            JPanel panel = new JPanel(new GridLayout(3, 2, 5, 5));
+            panel.add(new JLabel("Search radius (pixels):"));
+            panel.add(radiusField);
+            panel.add(new JLabel("Method:"));
+            panel.add(methodCombo);
+            panel.add(subpixelBox);
+            if (JOptionPane.showConfirmDialog(this, panel, "Refine Positions (channel " + imp.getC() + ")",
+                    JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+                return;
+            }
+            int radius;
+            try {
+                radius = Integer.parseInt(radiusField.getText().trim());
+                if (radius < 1) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                JOptionPane.showMessageDialog(this, "Please enter a radius of at least 1 pixel.",
+                    "Invalid Radius", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            refineRadius = radiusField.getText().trim();
+            refineMethod = (PositionRefiner.Method) methodCombo.getSelectedItem();
+            refineSubpixel = subpixelBox.isSelected();
+            
+            if (positionTable.isEditing()) {
+                positionTable.getCellEditor().stopCellEditing();
+            }
+            List<Position> snapshot = new ArrayList<>(positions);
+            SnapshotSettings settings = PositionRefiner.windowSettings(radius);
+            settings.drift = driftTable; // Windows follow the drift; results stay in frame 1 coordinates
+            int channel = imp.getC();
+            PositionRefiner.Method method = refineMethod;
+            boolean subpixel = refineSubpixel;
+            statusLabel.setText("Refining positions...");
+            long start = System.nanoTime();
+            new SwingWorker<Position[], Void>() {
+                @Override
+                protected Position[] doInBackground() throws IOException {
+                    // Built here: opening the engine's reader touches the file
+                    SnapshotEngine engine = new SnapshotEngine(imp, settings);
+                    try {
+                        return new PositionRefiner(engine, channel, radius, method, subpixel).refine(snapshot);
+                    } finally {
+                        engine.close();
+                    }
+                }
+                
+                @Override
+                protected void done() {
+                    try {
+                        Position[] refined = get();
+                        if (!samePositions(snapshot)) {
+                            statusLabel.setText("Positions changed during refinement - not applied");
+                            return;
+                        }
+                        int moved = 0;
+                        for (Position pos : refined) {
+                            if (pos != null) {
+                                moved++;
+                            }
+                        }
+                        replacePositions(refined);
+                        statusLabel.setText(String.format("Refined positions: %d moved (%.1f s)",
+                            moved, (System.nanoTime() - start) / 1e9));
+                    } catch (Exception ex) {
+                        Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                        JOptionPane.showMessageDialog(DanceNowWindow.this,
+                            "Error refining positions: " + cause.getMessage(),
+                            "Refinement Error", JOptionPane.ERROR_MESSAGE);
+                        statusLabel.setText("Refinement failed");
+                    }
+                }
+            }.execute();
+        }
+        
+        /**
+         * Adds positions in one batch: empty rows are filled first, then rows are appended, and
+         * the table is notified once.
+         */
+        private void insertPositions(List<Position> added) {
+            if (positionTable.isEditing()) {
+                positionTable.getCellEditor().stopCellEditing();
+            }
+            Vector<Vector<Object>> data = tableRows();
+            int next = 0;
+            for (int i = 0; i < positions.size() && next < added.size(); i++) {
+                if (positions.get(i) == null) {
+                    Position pos = added.get(next++);
+                    positions.set(i, pos);
+                    data.get(i).set(1, pos.toString());
+                    data.get(i).set(2, pos.note);
+                }
+            }
+            List<Position> appended = added.subList(next, added.size());
+            for (Position pos : appended) {
+                Vector<Object> row = new Vector<>(3);
+                row.add(data.size() + 1);
+                row.add(pos.toString());
+                row.add(pos.note);
+                data.add(row);
+            }
+            positions.addAll(appended);
+            isUpdatingTable = true;
+            try {
+                tableModel.fireTableDataChanged();
+            } finally {
+                isUpdatingTable = false;
+            }
+        }
+        
+        /**
+         * Detects local maxima on the chosen planes of the current channel in the background and
+         * adds one position per maximum.
+         */
+        private void generateFromMaxima() {
+            ImagePlus imp = WindowManager.getCurrentImage();
+            if (imp == null) {
+                JOptionPane.showMessageDialog(this, "No image open. Please open an image first.",
+                    "No Image", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            
+            JTextField zField = new JTextField(maximaZ != null ? maximaZ : String.valueOf(imp.getZ()), 8);
+            JTextField tField = new JTextField(maximaT != null ? maximaT : String.valueOf(imp.getT()), 8);
+            JTextField prominenceField = new JTextField(maximaProminence, 8);
+            JCheckBox edgesBox = new JCheckBox("Exclude maxima on edges", maximaExcludeEdges);
+            // Masks: the current selection, or any open image of the same size (nonzero = inside)
+            List<String> maskChoices = new ArrayList<>();
+            List<ImagePlus> maskImages = new ArrayList<>();
+            maskChoices.add("None");
+            maskImages.add(null);
+            Roi roi = imp.getRoi();
+            if (roi != null && roi.isArea()) {
+                maskChoices.add("Current selection");
+                maskImages.add(null);
+            }
+            int[] ids = WindowManager.getIDList();
+            if (ids != null) {
+                for (int id : ids) {
+                    ImagePlus other = WindowManager.getImage(id);
+                    if (other != null && other != imp && other.getWidth() == imp.getWidth()
+                            && other.getHeight() == imp.getHeight()) {
+                        maskChoices.add(other.getTitle());
+                        maskImages.add(other);
+                    }
+                }
+            }
+            JComboBox<String> maskCombo = new JComboBox<>(maskChoices.toArray(new String[0]));
+            JPanel panel = new JPanel(new GridLayout(5, 2, 5, 5));
+            panel.add(new JLabel("Z slices (e.g. 1-5,8 or all):"));
+            panel.add(zField);
+            panel.add(new JLabel("T frames (e.g. 1-5,8 or all):"));
+            panel.add(tField);
+            panel.add(new JLabel("Prominence:"));
+            panel.add(prominenceField);
+            panel.add(new JLabel("Mask:"));
+            panel.add(maskCombo);
+            panel.add(edgesBox);
+            if (JOptionPane.showConfirmDialog(this, panel, "Positions from Maxima (channel " + imp.getC() + ")",
+                    JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+                return;
+            }
+            int[] zs, ts;
+            double prominence;
+            try {
+                zs = parsePlaneList(zField.getText(), imp.getNSlices());
+                ts = parsePlaneList(tField.getText(), imp.getNFrames());
+                prominence = Double.parseDouble(prominenceField.getText().trim());
+                if (prominence < 0) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                JOptionPane.showMessageDialog(this,
+                    String.format("Please enter slices within 1-%d, frames within 1-%d\n" +
+                                  "and a prominence of 0 or more.", imp.getNSlices(), imp.getNFrames()),
+                    "Invalid Input", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            maximaZ = zField.getText().trim();
+            maximaT = tField.getText().trim();
+            maximaProminence = prominenceField.getText().trim();
+            maximaExcludeEdges = edgesBox.isSelected();
+            String mask = (String) maskCombo.getSelectedItem();
+            Roi maskRoi = "Current selection".equals(mask) ? (Roi) roi.clone() : null;
+            ImagePlus maskImage = maskImages.get(maskCombo.getSelectedIndex());
+            
+            SnapshotSettings settings = new SnapshotSettings();
+            settings.drift = driftTable; // Maxima are stored in frame 1 coordinates
+            int channel = imp.getC();
+            boolean excludeEdges = maximaExcludeEdges;
+            ImageProcessor maskPixels = maskImage != null ? maskImage.getProcessor() : null;
+            long start = System.nanoTime();
+            new ProgressWorker<List<Position>>("Finding maxima") {
+                @Override
+                protected List<Position> doInBackground() throws IOException {
+                    SnapshotEngine engine = new SnapshotEngine(imp, settings);
+                    try {
+                        MaximaGenerator generator = new MaximaGenerator(engine, channel, prominence, excludeEdges,
+                            maskRoi, maskPixels);
+                        return generator.run(zs, ts, listener(), this::isCancelled);
+                    } finally {
+                        engine.close();
+                    }
+                }
+                
+                @Override
+                void finished() {
+                    try {
+                        List<Position> found = get();
+                        if (found.isEmpty()) {
+                            statusLabel.setText("No maxima found");
+                            return;
+                        }
+                        if (JOptionPane.showConfirmDialog(DanceNowWindow.this,
+                                String.format("Found %d maxima on %d planes. Add them as positions?",
+                                              found.size(), zs.length * ts.length),
+                                "Positions from Maxima", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) {
+                            statusLabel.setText("Maxima not added");
+                            return;
+                        }
+                        insertPositions(found);
+                        statusLabel.setText(String.format("Added %d positions from maxima (%.1f s)",
+                            found.size(), (System.nanoTime() - start) / 1e9));
+                    } catch (Exception ex) {
+                        Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                        JOptionPane.showMessageDialog(DanceNowWindow.this,
+                            "Error finding maxima: " + cause.getMessage(),
+                            "Maxima Error", JOptionPane.ERROR_MESSAGE);
+                        statusLabel.setText("Maxima detection failed");
+                    }
+                }
+            }.execute();
+        }
+        
+        /**
+         * Tracks the selected positions (or all of them) through time by template matching in the
+         * background and adds the tracked positions, track by track in frame order.
+         */
+        private void trackPositions() {
+            ImagePlus imp = WindowManager.getCurrentImage();
+            if (imp == null) {
+                JOptionPane.showMessageDialog(this, "No image open. Please open an image first.",
+                    "No Image", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            if (imp.getNFrames() < 2) {
+                JOptionPane.showMessageDialog(this, "The image has only one time frame.",
+                    "No Time Series", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            if (positionTable.isEditing()) {
+                positionTable.getCellEditor().stopCellEditing();
+            }
+            // Each track is identified by the row number of its start
+            List<Position> starts = new ArrayList<>();
+            List<Integer> startRows = new ArrayList<>();
+            int[] selectedRows = positionTable.getSelectedRows();
+            if (selectedRows.length > 0) {
+                for (int row : selectedRows) {
+                    if (row < positions.size() && positions.get(row) != null) {
+                        starts.add(positions.get(row));
+                        startRows.add(row + 1);
+                    }
+                }
+            } else {
+                // Without a selection, rows written by an earlier tracking run are not tracked again
+                for (int row = 0; row < positions.size(); row++) {
+                    Position pos = positions.get(row);
+                    if (pos != null && !PositionTracker.isTracked(pos)) {
+                        starts.add(pos);
+                        startRows.add(row + 1);
+                    }
+                }
+            }
+            if (starts.isEmpty()) {
+                JOptionPane.showMessageDialog(this, "No positions to track. Please add or select positions first.\n" +
+                    "Rows made by tracking are only tracked again when selected.",
+                    "No Positions", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            int[] trackIds = startRows.stream().mapToInt(Integer::intValue).toArray();
+            
+            JTextField templateField = new JTextField(trackTemplate, 5);
+            JTextField searchField = new JTextField(trackSearch, 5);
+            JTextField scoreField = new JTextField(trackMinScore, 5);
+            JTextField framesField = new JTextField("1-" + imp.getNFrames(), 8);
+            JCheckBox updateBox = new JCheckBox("Update template every frame", trackUpdate);
+            JPanel panel = new JPanel(new GridLayout(5, 2, 5, 5));
+            panel.add(new JLabel("Template size (pixels):"));
+            panel.add(templateField);
+            panel.add(new JLabel("Search distance per frame (pixels):"));
+            panel.add(searchField);
+            panel.add(new JLabel("Minimum correlation (0-1):"));
+            panel.add(scoreField);
+            panel.add(new JLabel("Frames (from-to):"));
+            panel.add(framesField);
+            panel.add(updateBox);
+            String title = String.format("Track %d Position%s (channel %d)", starts.size(), starts.size() == 1 ? "" : "s", imp.getC());
+            if (JOptionPane.showConfirmDialog(this, panel, title,
+                    JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+                return;
+            }
+            int templateSize, search, firstT, lastT;
+            double minScore;
+            try {
+                templateSize = Integer.parseInt(templateField.getText().trim());
+                search = Integer.parseInt(searchField.getText().trim());
+                minScore = Double.parseDouble(scoreField.getText().trim());
+                int[] frames = parsePlaneList(framesField.getText(), imp.getNFrames());
+                firstT = frames[0];
+                lastT = frames[frames.length - 1];
+                if (templateSize < 3 || search < 1 || minScore < -1 || minScore > 1) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                JOptionPane.showMessageDialog(this,
+                    String.format("Please enter a template of at least 3 pixels, a search distance of at least 1,\n" +
+                                  "a minimum correlation between -1 and 1 and frames within 1-%d.", imp.getNFrames()),
+                    "Invalid Input", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            trackTemplate = templateField.getText().trim();
+            trackSearch = searchField.getText().trim();
+            trackMinScore = scoreField.getText().trim();
+            trackUpdate = updateBox.isSelected();
+            
+            SnapshotSettings settings = new SnapshotSettings();
+            settings.drift = driftTable; // Tracks are stored in frame 1 coordinates
+            int channel = imp.getC();
+            boolean updateTemplate = trackUpdate;
+            long start = System.nanoTime();
+            new ProgressWorker<List<List<Position>>>("Tracking positions") {
+                @Override
+                protected List<List<Position>> doInBackground() throws IOException {
+                    SnapshotEngine engine = new SnapshotEngine(imp, settings);
+                    try {
+                        PositionTracker tracker = new PositionTracker(engine, channel, templateSize, search, minScore,
+                            updateTemplate);
+                        return tracker.run(starts, trackIds, firstT, lastT, listener(), this::isCancelled);
+                    } finally {
+                        engine.close();
+                    }
+                }
+                
+                @Override
+                void finished() {
+                    try {
+                        List<Position> tracked = new ArrayList<>();
+                        for (List<Position> track : get()) {
+                            tracked.addAll(track);
+                        }
+                        if (tracked.isEmpty()) {
+                            statusLabel.setText("No positions could be tracked");
+                            return;
+                        }
+                        insertPositions(tracked);
+                        statusLabel.setText(String.format("Added %d tracked positions from %d tracks (%.1f s)",
+                            tracked.size(), starts.size(), (System.nanoTime() - start) / 1e9));
+                    } catch (Exception ex) {
+                        Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                        JOptionPane.showMessageDialog(DanceNowWindow.this,
+                            "Error tracking positions: " + cause.getMessage(),
+                            "Tracking Error", JOptionPane.ERROR_MESSAGE);
+                        statusLabel.setText("Tracking failed");
+                    }
+                }
+            }.execute();
+        }
+        
+        /**
+         * Lets the user pick the open images that follow navigation of the current one.
+         */
+        private void chooseSyncGroup() {
+            ImagePlus current = WindowManager.getCurrentImage();
+            int[] ids = WindowManager.getIDList();
+            List<ImagePlus> candidates = new ArrayList<>();
+            if (ids != null) {
+                for (int id : ids) {
+                    ImagePlus other = WindowManager.getImage(id);
+                    if (other != null && other != current && other.getWindow() != null) {
+                        candidates.add(other);
+                    }
+                }
+            }
+            if (candidates.isEmpty()) {
+                JOptionPane.showMessageDialog(this, "No other image windows are open.",
+                    "Sync Windows", JOptionPane.WARNING_MESSAGE);
+                syncToggle.setSelected(false);
+                return;
+            }
+            
+            JPanel panel = new JPanel(new GridLayout(0, 1, 5, 5));
+            panel.add(new JLabel("Images that follow navigation:"));
+            JCheckBox[] boxes = new JCheckBox[candidates.size()];
+            for (int i = 0; i < boxes.length; i++) {
+                boxes[i] = new JCheckBox(candidates.get(i).getTitle(),
+                    syncGroup == null || syncGroup.contains(candidates.get(i)));
+                panel.add(boxes[i]);
+            }
+            if (JOptionPane.showConfirmDialog(this, new JScrollPane(panel), "Sync Windows",
+                    JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+                syncToggle.setSelected(false);
+                return;
+            }
+            List<Integer> chosen = new ArrayList<>();
+            for (int i = 0; i < boxes.length; i++) {
+                if (boxes[i].isSelected()) {
+                    chosen.add(candidates.get(i).getID());
+                }
+            }
+            if (chosen.isEmpty()) {
+                syncToggle.setSelected(false);
+                statusLabel.setText("Window sync off");
+                return;
+            }
+            syncGroup = new SyncGroup(chosen.stream().mapToInt(Integer::intValue).toArray());
+            statusLabel.setText("Syncing navigation to " + chosen.size() + " window" + (chosen.size() == 1 ? "" : "s"));
+        }
+        
+        /**
+         * Rows that Next/Back, prefetch and snapshots visit when they differ from the non-empty
+         * rows in table order: the optimized order, limited to the rows whose notes match the
+         * filter. Returns null when neither is active.
+         */
+        private int[] navigationOrder() {
+            if (filterQuery == null) {
+                return visitOrder;
+            }
+            if (filterOrder == null || filterOrderBase != visitOrder) {
+                Set<Position> matches = noteIndex.matches(filterQuery);
+                IntStream rows = visitOrder != null
+                    ? Arrays.stream(visitOrder) : IntStream.range(0, positions.size());
+                filterOrder = rows.filter(row -> row < positions.size() && positions.get(row) != null
+                                                 && matches.contains(positions.get(row))).toArray();
+                filterOrderBase = visitOrder;
+            }
+            return filterOrder;
+        }
+        
+        /**
+         * Whether the row takes part in export and snapshots: not empty and, with a note filter,
+         * matching it.
+         */
+        private boolean[] includedRows() {
+            boolean[] included = new boolean[positions.size()];
+            if (filterQuery != null) {
+                for (int row : navigationOrder()) {
+                    included[row] = true;
+                }
+            } else {
+                for (int i = 0; i < included.length; i++) {
+                    included[i] = positions.get(i) != null;
+                }
+            }
+            return included;
+        }
+        
+        private void applyNoteFilter() {
+            long start = System.nanoTime();
+            String text = filterField.getText();
+            // Text without any words (e.g. only separators) turns the filter off
+            filterQuery = NoteIndex.hasWords(text) ? text : null;
+            filterOrder = null;
+            if (filterQuery == null) {
+                statusLabel.setText("Note filter off");
+                return;
+            }
+            int[] order = navigationOrder();
+            long total = positions.stream().filter(p -> p != null).count();
+            statusLabel.setText(String.format("Note filter: %d of %d positions (%.1f ms)",
+                order.length, total, (System.nanoTime() - start) / 1e6));
+        }
+        
+        private int driftX(int t) {
+            return driftTable != null ? driftTable.dx(t) : 0;
+        }
+        
+        private int driftY(int t) {
+            return driftTable != null ? driftTable.dy(t) : 0;
+        }
+        
+        /**
+         * Estimates the drift of every frame of the current image by phase correlation on the
+         * current channel and slice, in the background, and turns drift correction on.
+         */
+        private void estimateDrift() {
+            ImagePlus imp = WindowManager.getCurrentImage();
+            if (imp == null) {
+                JOptionPane.showMessageDialog(this, "No image open. Please open an image first.",
+                    "No Image", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            if (imp.getNFrames() < 2) {
+                JOptionPane.showMessageDialog(this, "The image has only one time frame.",
+                    "No Time Series", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            int channel = imp.getC(), z = imp.getZ();
+            long start = System.nanoTime();
+            new ProgressWorker<DriftTable>("Estimating drift") {
+                @Override
+                protected DriftTable doInBackground() throws IOException {
+                    SnapshotEngine engine = new SnapshotEngine(imp, new SnapshotSettings());
+                    try {
+                        return new DriftEstimator(engine, channel, z).run(listener(), this::isCancelled);
+                    } finally {
+                        engine.close();
                     }
-                } catch (NumberFormatException e) {
-                    positions.add(null); // Invalid number format, treat as empty
                 }
+                
+                @Override
+                void finished() {
+                    try {
+                        setDriftTable(get());
+                        int last = driftTable.getNFrames();
+                        statusLabel.setText(String.format("Drift correction on: frame %d is at %+d,%+d (%.1f s)",
+                            last, driftTable.dx(last), driftTable.dy(last), (System.nanoTime() - start) / 1e9));
+                    } catch (Exception ex) {
+                        Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                        JOptionPane.showMessageDialog(DanceNowWindow.this,
+                            "Error estimating drift: " + cause.getMessage(),
+                            "Drift Error", JOptionPane.ERROR_MESSAGE);
+                        statusLabel.setText("Drift estimation failed");
+                    }
+                }
+            }.execute();
+        }
+        
+        /**
+         * Switches drift correction to the table, or off for null. The tools that read around saved
+         * positions (measure, refine, maxima, track, thumbnails) and the position layers take it
+         * from here too.
+         */
+        private void setDriftTable(DriftTable drift) {
+            driftTable = drift;
+            thumbnails.setDrift(drift);
+            layersStale = true; // Markers and heatmap move with the drift
+        }
+        
+        private void importDrift() {
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("CSV Files (*.csv)", "csv"));
+            if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            File file = fileChooser.getSelectedFile();
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                setDriftTable(DriftTable.read(reader));
+                statusLabel.setText("Drift correction on: " + driftTable.getNFrames() + " frames from " + file.getName());
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(this, "Error reading drift table: " + e.getMessage(),
+                    "Import Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+        
+        private void exportDrift() {
+            if (driftTable == null) {
+                JOptionPane.showMessageDialog(this, "No drift table. Please estimate or import drift first.",
+                    "No Drift Table", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setSelectedFile(new File("drift.csv"));
+            if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            File file = fileChooser.getSelectedFile();
+            try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+                driftTable.write(writer);
+                statusLabel.setText("Exported drift table to " + file.getName());
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(this, "Error writing drift table: " + e.getMessage(),
+                    "Export Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+        
+        /**
+         * Parses "all" or a comma-separated list of numbers and ranges such as "1-5,8" into
+         * ascending distinct values within 1..max.
+         */
+        private static int[] parsePlaneList(String text, int max) {
+            text = text.trim();
+            if (text.equalsIgnoreCase("all")) {
+                return IntStream.rangeClosed(1, max).toArray();
+            }
+            BitSet planes = new BitSet(max + 1);
+            for (String part : text.split(",")) {
+                String[] bounds = part.trim().split("-", 2);
+                int from = Integer.parseInt(bounds[0].trim());
+                int to = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : from;
+                if (from < 1 || to > max || from > to) {
+                    throw new NumberFormatException(part);
+                }
+                planes.set(from, to + 1);
+            }
+            return planes.stream().toArray();
+        }
+        
+        private void parseBulkPositions(String text) {
+            String[] lines = text.split("\n");
+            int addedCount = 0;
+            int errorCount = 0;
+            
+            for (int i = 0; i < lines.length; i++) {
+                String line = lines[i].trim();
+                if (!line.isEmpty()) {
+                    try {
+                        // Split by comma, space, or tab (handle up to 5 parts for note)
+                        String[] parts = line.split("[,\\s\\t]+", 5);
+                        if (parts.length >= 4) {
+                            int x = Integer.parseInt(parts[0].trim());
+                            int y = Integer.parseInt(parts[1].trim());
+                            int z = Integer.parseInt(parts[2].trim());
+                            int t = Integer.parseInt(parts[3].trim());
+                            
+                            // Get note if present
+                            String note = "";
+                            if (parts.length >= 5) {
+                                note = parts[4].trim();
+                            }
+                            
+                            // Validate coordinates
+                            ImagePlus imp = WindowManager.getCurrentImage();
+                            if (imp != null) {
+                                if (x < 1 || x > imp.getWidth() || y < 1 || y > imp.getHeight() ||
+                                    z < 1 || z > imp.getNSlices() || t < 1 || t > imp.getNFrames()) {
+                                    errorCount++;
+                                    continue;
+                                }
+                            }
+                            
+                            Position pos = new Position(x, y, z, t, note);
+                            
+                            // Find first empty row or add at the end
+                            int insertRow = -1;
+                            for (int j = 0; j < positions.size(); j++) {
+                                if (positions.get(j) == null) {
+                                    insertRow = j;
+                                    break;
+                                }
+                            }
+                            
+                            if (insertRow >= 0) {
+                                // Replace empty position
+                                positions.set(insertRow, pos);
+                                tableModel.setValueAt(pos.toString(), insertRow, 1);
+                                tableModel.setValueAt(note, insertRow, 2);
+                            } else {
+                                // Add new row at the end
+                                positions.add(pos);
+                                tableModel.addRow(new Object[]{tableModel.getRowCount() + 1, pos.toString(), note});
+                            }
+                            
+                            addedCount++;
+                        } else {
+                            errorCount++;
+                        }
+                    } catch (NumberFormatException e) {
+                        errorCount++;
+                    }
+                }
+            }
+            
+            String message = "Added " + addedCount + " positions.";
+            if (errorCount > 0) {
+                message += " " + errorCount + " lines had errors and were skipped.";
+            }
+            statusLabel.setText(message);
+        }
+        
+        private void updateFieldsFromSelectedRow() {
+            int selectedRow = positionTable.getSelectedRow();
+            if (selectedRow >= 0 && selectedRow < positions.size()) {
+                currentPositionIndex = selectedRow;
+                Position pos = positions.get(selectedRow);
+                if (pos != null) {
+                    xField.setText(String.valueOf(pos.x));
+                    yField.setText(String.valueOf(pos.y));
+                    zField.setText(String.valueOf(pos.z));
+                    tField.setText(String.valueOf(pos.t));
+                    noteField.setText(pos.note != null ? pos.note : "");
+                } else {
+                    // Clear fields for empty rows
+                    xField.setText("");
+                    yField.setText("");
+                    zField.setText("");
+                    tField.setText("");
+                    noteField.setText("");
+                }
+            }
+        }
+        
+        private void updatePositionsFromTable() {
+            updatePositionsFromTable(0, tableModel.getRowCount() - 1);
+        }
+        
+        /**
+         * Re-parses rows first..last into the position list. Rows whose contents did not change keep
+         * their Position object, so only edited rows reach the position index.
+         */
+        private void updatePositionsFromTable(int first, int last) {
+            int rowCount = tableModel.getRowCount();
+            // A list that fell behind the table is filled from its end, so rows stay aligned
+            for (int i = Math.min(first, positions.size()); i <= last && i < rowCount; i++) {
+                Position parsed = parseRow(i);
+                if (i >= positions.size()) {
+                    positions.add(parsed);
+                } else if (!samePosition(positions.get(i), parsed)) {
+                    positions.set(i, parsed);
+                }
+            }
+            while (positions.size() > rowCount) {
+                positions.remove(positions.size() - 1);
+            }
+        }
+        
+        /**
+         * Parses one table row, or returns null for empty or invalid rows.
+         */
+        private Position parseRow(int row) {
+            Object valueObj = tableModel.getValueAt(row, 1);
+            if (valueObj == null) {
+                return null;
+            }
+            
+            String value = valueObj.toString().trim();
+            if (value.isEmpty()) {
+                return null;
+            }
+            
+            try {
+                String[] parts = value.split(",");
+                if (parts.length == 4) {
+                    int x = Integer.parseInt(parts[0].trim());
+                    int y = Integer.parseInt(parts[1].trim());
+                    int z = Integer.parseInt(parts[2].trim());
+                    int t = Integer.parseInt(parts[3].trim());
+                    
+                    // Get note from second column
+                    Object noteObj = tableModel.getValueAt(row, 2);
+                    String note = noteObj != null ? noteObj.toString() : "";
+                    
+                    // The table shows rounded X,Y; a refined position keeps its sub-pixel X,Y
+                    // as long as those are not edited
+                    Position old = row < positions.size() ? positions.get(row) : null;
+                    if (old != null && old.hasSubpixel() && old.x == x && old.y == y) {
+                        return Position.subpixel(old.subX, old.subY, z, t, note);
+                    }
+                    return new Position(x, y, z, t, note);
+                }
+                return null; // Invalid format, treat as empty
+            } catch (NumberFormatException e) {
+                return null; // Invalid number format, treat as empty
+            }
+        }
+        
+        private static boolean samePosition(Position a, Position b) {
+            if (a == null || b == null) {
+                return a == b;
             }
+            return a.x == b.x && a.y == b.y && a.z == b.z && a.t == b.t && a.note.equals(b.note);
         }
         
         private void removeSelectedPosition() {
@@ -1171,11 +2714,7 @@ public class DanceNow implements PlugIn {
             if (selectedRow >= 0 && selectedRow < positions.size()) {
                 positions.remove(selectedRow);
                 tableModel.removeRow(selectedRow);
-                
-                // Update row numbers for all remaining rows
-                for (int i = 0; i < tableModel.getRowCount(); i++) {
-                    tableModel.setValueAt(i + 1, i, 0);
-                }
+                renumberRows(selectedRow);
                 
                 // Update current position index if needed
                 if (currentPositionIndex >= positions.size()) {
@@ -1342,25 +2881,30 @@ public class DanceNow implements PlugIn {
                 
                 try (FileWriter writer = new FileWriter(file)) {
                     int exportCount = 0;
+                    boolean[] included = includedRows(); // Non-empty rows matching the note filter
                     
                     if (isCSV) {
                         // CSV format with headers including Note column
                         writer.write("X,Y,Z,T,Note\n");
                         for (int i = 0; i < positions.size(); i++) {
                             Position pos = positions.get(i);
-                            if (pos != null) {
+                            if (included[i]) {
                                 Object noteObj = tableModel.getValueAt(i, 2);
                                 String note = (noteObj != null ? noteObj.toString() : "").replace(",", ";"); // Escape commas in notes
-                                writer.write(String.format("%d,%d,%d,%d,%s\n", 
-                                    pos.x, pos.y, pos.z, pos.t, note));
+                                // Refined positions keep their sub-pixel X,Y in the CSV
+                                String xy = pos.hasSubpixel()
+                                    ? String.format(Locale.ROOT, "%.3f,%.3f", pos.subX, pos.subY)
+                                    : pos.x + "," + pos.y;
+                                writer.write(String.format("%s,%d,%d,%s\n", 
+                                    xy, pos.z, pos.t, note));
                                 exportCount++;
                             }
                         }
                     } else {
                         // TXT format (original format - no notes)
-                        for (Position pos : positions) {
-                            if (pos != null) {
-                                writer.write(pos.toString() + "\n");
+                        for (int i = 0; i < positions.size(); i++) {
+                            if (included[i]) {
+                                writer.write(positions.get(i).toString() + "\n");
                                 exportCount++;
                             }
                         }
@@ -1497,9 +3041,19 @@ public class DanceNow implements PlugIn {
                 
                 // Try to parse X and Y (required)
                 Integer x = null, y = null;
+                double subX = Double.NaN, subY = Double.NaN;
                 try {
-                    x = Integer.parseInt(parts[0].trim());
-                    y = Integer.parseInt(parts[1].trim());
+                    String xText = parts[0].trim(), yText = parts[1].trim();
+                    if (xText.contains(".") || yText.contains(".")) {
+                        // Sub-pixel X,Y from a refined export
+                        subX = Double.parseDouble(xText);
+                        subY = Double.parseDouble(yText);
+                        x = (int) Math.round(subX);
+                        y = (int) Math.round(subY);
+                    } else {
+                        x = Integer.parseInt(xText);
+                        y = Integer.parseInt(yText);
+                    }
                 } catch (NumberFormatException e) {
                     // Missing or invalid X,Y - skip this position with warning
                     JOptionPane.showMessageDialog(this,
@@ -1577,7 +3131,8 @@ public class DanceNow implements PlugIn {
                     note = parts[4].trim();
                 }
                 
-                Position pos = new Position(x, y, z, t, note);
+                Position pos = Double.isNaN(subX) ? new Position(x, y, z, t, note)
+                                                  : Position.subpixel(subX, subY, z, t, note);
                 positions.add(pos);
                 tableModel.addRow(new Object[]{tableModel.getRowCount() + 1, pos.toString(), note});
                 return true;
@@ -1618,15 +3173,30 @@ public class DanceNow implements PlugIn {
             private JCheckBox includeCrossCheckBox;
             private JCheckBox horizontalReverseCheckBox;
             private JCheckBox annotationTextCheckBox;
+            private JCheckBox renderCacheCheckBox;
             private JTextField widthField, heightField;
             private JCheckBox[] channelCheckBoxes;
+            private JComboBox<SnapshotSettings.Output> outputFormatCombo;
+            private JTextField montageColumnsField, montageRowsField;
+            private JComboBox<SnapshotSettings.Projection> projectionCombo;
+            private JComboBox<String> projectionAxisCombo;
+            private JTextField projectionRangeField;
             private ImagePlus targetImage;
             private JProgressBar progressBar;
             private JLabel progressLabel;
+            private JButton takeSnapshotsButton;
+            private SwingWorker<Void, Integer> snapshotWorker; // Running snapshot job, null when idle
             
             public SnapshotDialog(JFrame parent, ImagePlus imp) {
                 super(parent, "Snapshot Settings", true);
                 this.targetImage = imp;
+                setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+                addWindowListener(new WindowAdapter() {
+                    @Override
+                    public void windowClosing(WindowEvent e) {
+                        cancelOrClose();
+                    }
+                });
                 initializeUI();
                 pack();
                 setLocationRelativeTo(parent);
@@ -1652,6 +3222,11 @@ public class DanceNow implements PlugIn {
                 optionsPanel.add(horizontalReverseCheckBox);
                 optionsPanel.add(Box.createHorizontalStrut(15));
                 optionsPanel.add(annotationTextCheckBox);
+                optionsPanel.add(Box.createHorizontalStrut(15));
+                renderCacheCheckBox = new JCheckBox("Use render cache");
+                renderCacheCheckBox.setSelected(true);
+                renderCacheCheckBox.setToolTipText("Reuse snapshots rendered in earlier runs (PNG and ZIP output)");
+                optionsPanel.add(renderCacheCheckBox);
                 mainPanel.add(optionsPanel);
                 
                 // Snapshot area settings
@@ -1683,6 +3258,48 @@ public class DanceNow implements PlugIn {
                 
                 mainPanel.add(channelPanel);
                 
+                // Projection over a Z or T range around each position, computed on the crop only
+                JPanel projectionPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+                projectionPanel.setBorder(BorderFactory.createTitledBorder("Projection"));
+                projectionCombo = new JComboBox<>(SnapshotSettings.Projection.values());
+                projectionPanel.add(projectionCombo);
+                projectionPanel.add(Box.createHorizontalStrut(10));
+                projectionPanel.add(new JLabel("over"));
+                projectionAxisCombo = new JComboBox<>(new String[]{"Z", "T"});
+                projectionPanel.add(projectionAxisCombo);
+                projectionPanel.add(new JLabel("+/-"));
+                projectionRangeField = new JTextField("2", 3);
+                projectionPanel.add(projectionRangeField);
+                projectionCombo.addActionListener(e -> {
+                    boolean project = projectionCombo.getSelectedItem() != SnapshotSettings.Projection.NONE;
+                    projectionAxisCombo.setEnabled(project);
+                    projectionRangeField.setEnabled(project);
+                });
+                projectionAxisCombo.setEnabled(false);
+                projectionRangeField.setEnabled(false);
+                mainPanel.add(projectionPanel);
+                
+                // Output format: one PNG per position or container files
+                JPanel outputPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+                outputPanel.setBorder(BorderFactory.createTitledBorder("Output"));
+                outputFormatCombo = new JComboBox<>(SnapshotSettings.Output.values());
+                outputPanel.add(outputFormatCombo);
+                outputPanel.add(Box.createHorizontalStrut(10));
+                outputPanel.add(new JLabel("Montage:"));
+                montageColumnsField = new JTextField("10", 3);
+                outputPanel.add(montageColumnsField);
+                outputPanel.add(new JLabel("x"));
+                montageRowsField = new JTextField("10", 3);
+                outputPanel.add(montageRowsField);
+                outputFormatCombo.addActionListener(e -> {
+                    boolean montage = outputFormatCombo.getSelectedItem() == SnapshotSettings.Output.MONTAGE;
+                    montageColumnsField.setEnabled(montage);
+                    montageRowsField.setEnabled(montage);
+                });
+                montageColumnsField.setEnabled(false);
+                montageRowsField.setEnabled(false);
+                mainPanel.add(outputPanel);
+                
                 // Progress panel (initially hidden)
                 JPanel progressPanel = new JPanel(new BorderLayout());
                 progressPanel.setBorder(BorderFactory.createEmptyBorder(5, 0, 5, 0));
@@ -1698,17 +3315,29 @@ public class DanceNow implements PlugIn {
                 
                 // Button panel
                 JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
-                JButton snapshotButton = new JButton("Take Snapshots");
+                takeSnapshotsButton = new JButton("Take Snapshots");
                 JButton cancelButton = new JButton("Cancel");
                 
-                snapshotButton.addActionListener(e -> takeSnapshots(progressPanel));
-                cancelButton.addActionListener(e -> dispose());
+                takeSnapshotsButton.addActionListener(e -> takeSnapshots(progressPanel));
+                cancelButton.addActionListener(e -> cancelOrClose());
                 
-                buttonPanel.add(snapshotButton);
+                buttonPanel.add(takeSnapshotsButton);
                 buttonPanel.add(cancelButton);
                 add(buttonPanel, BorderLayout.SOUTH);
             }
             
+            /**
+             * Cancel stops a running job after the snapshot in flight; otherwise it closes the dialog.
+             */
+            private void cancelOrClose() {
+                if (snapshotWorker != null && !snapshotWorker.isDone()) {
+                    snapshotWorker.cancel(false); // No interrupt: an interrupted FileChannel would be closed mid-write
+                    progressLabel.setText("Cancelling...");
+                } else {
+                    dispose();
+                }
+            }
+            
             private void takeSnapshots(JPanel progressPanel) {
                 // Validate input
                 int width, height;
@@ -1726,6 +3355,37 @@ public class DanceNow implements PlugIn {
                     return;
                 }
                 
+                // Validate montage layout
+                int montageColumns, montageRows;
+                try {
+                    montageColumns = Integer.parseInt(montageColumnsField.getText().trim());
+                    montageRows = Integer.parseInt(montageRowsField.getText().trim());
+                    if (montageColumns <= 0 || montageRows <= 0) {
+                        throw new NumberFormatException();
+                    }
+                } catch (NumberFormatException ex) {
+                    JOptionPane.showMessageDialog(this,
+                        "Please enter valid positive integers for montage columns and rows.",
+                        "Invalid Input",
+                        JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                
+                // Validate projection range
+                int projectionRange;
+                try {
+                    projectionRange = Integer.parseInt(projectionRangeField.getText().trim());
+                    if (projectionRange < 0) {
+                        throw new NumberFormatException();
+                    }
+                } catch (NumberFormatException ex) {
+                    JOptionPane.showMessageDialog(this,
+                        "Please enter a valid non-negative integer for the projection range.",
+                        "Invalid Input",
+                        JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                
                 // Check if at least one channel is selected
                 boolean hasChannel = false;
                 for (JCheckBox cb : channelCheckBoxes) {
@@ -1754,63 +3414,77 @@ public class DanceNow implements PlugIn {
                 
                 File saveDir = fileChooser.getSelectedFile();
                 
+                // Collect settings on the EDT; the job itself never touches Swing components
+                SnapshotSettings settings = new SnapshotSettings();
+                settings.width = width;
+                settings.height = height;
+                settings.includeCross = includeCrossCheckBox.isSelected();
+                settings.horizontalReverse = horizontalReverseCheckBox.isSelected();
+                settings.includeAnnotation = annotationTextCheckBox.isSelected();
+                settings.channels = new boolean[targetImage.getNChannels()];
+                for (int i = 0; i < settings.channels.length; i++) {
+                    // Channels beyond the Ch1-Ch4 checkboxes are not included
+                    settings.channels[i] = i < channelCheckBoxes.length && channelCheckBoxes[i].isSelected();
+                }
+                settings.output = (SnapshotSettings.Output) outputFormatCombo.getSelectedItem();
+                settings.drift = driftTable;
+                settings.montageColumns = montageColumns;
+                settings.montageRows = montageRows;
+                settings.projection = (SnapshotSettings.Projection) projectionCombo.getSelectedItem();
+                settings.projectTime = "T".equals(projectionAxisCombo.getSelectedItem());
+                settings.projectionRange = projectionRange;
+                
+                // Non-empty rows, limited to those matching the note filter if one is set
+                boolean[] included = includedRows();
+                List<Position> validPositions = new ArrayList<>();
+                for (int i = 0; i < positions.size(); i++) {
+                    if (included[i]) {
+                        validPositions.add(positions.get(i));
+                    }
+                }
+                if (validPositions.isEmpty()) {
+                    JOptionPane.showMessageDialog(this, "No positions match the note filter.",
+                        "No Positions", JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                SnapshotEngine engine = new SnapshotEngine(targetImage, settings);
+                SnapshotJob job = new SnapshotJob(engine, validPositions, saveDir);
+                if (visitOrder != null) {
+                    // Render in the optimized order; file numbers still follow the table
+                    int[] validIndex = new int[positions.size()];
+                    for (int i = 0, n = 0; i < positions.size(); i++) {
+                        validIndex[i] = included[i] ? n++ : -1;
+                    }
+                    int[] rows = navigationOrder();
+                    int[] order = new int[rows.length];
+                    for (int i = 0; i < order.length; i++) {
+                        order[i] = validIndex[rows[i]];
+                    }
+                    job.setVisitOrder(order);
+                }
+                if (renderCacheCheckBox.isSelected()) {
+                    job.setRenderCache(RenderCache.getDefault());
+                }
+                // Time strips and kymographs are built in one pass over all frames instead
+                TimeStripJob stripJob = settings.output.isTimeSeries()
+                    ? new TimeStripJob(engine, validPositions, saveDir, settings.output == SnapshotSettings.Output.KYMOGRAPH)
+                    : null;
+                
                 // Show progress
                 progressPanel.setVisible(true);
                 progressBar.setValue(0);
+                takeSnapshotsButton.setEnabled(false);
                 
                 // Process snapshots in background
                 SwingWorker<Void, Integer> worker = new SwingWorker<Void, Integer>() {
-                    private ImagePlus preprocessedImage = null;
-                    
                     @Override
                     protected Void doInBackground() throws Exception {
-                        List<Position> validPositions = new ArrayList<>();
-                        for (Position pos : positions) {
-                            if (pos != null) {
-                                validPositions.add(pos);
-                            }
-                        }
-                        
-                        // Pre-process channels ONCE if multi-channel
-                        if (targetImage.getNChannels() > 1) {
-                            // Store original mode if CompositeImage
-                            int originalMode = -1;
-                            if (targetImage instanceof CompositeImage) {
-                                CompositeImage comp = (CompositeImage) targetImage;
-                                originalMode = comp.getMode();
-                                
-                                // Set active channels for the entire snapshot session
-                                StringBuilder activeChannelString = new StringBuilder();
-                                for (int i = 0; i < comp.getNChannels(); i++) {
-                                    if (i < channelCheckBoxes.length && channelCheckBoxes[i].isSelected()) {
-                                        activeChannelString.append("1");
-                                    } else {
-                                        activeChannelString.append("0");
-                                    }
-                                }
-                                comp.setActiveChannels(activeChannelString.toString());
-                                comp.setMode(CompositeImage.COMPOSITE);
-                            }
-                            
-                            // Store reference for fast processing
-                            preprocessedImage = targetImage;
-                        }
-                        
-                        int total = validPositions.size();
-                        for (int i = 0; i < total; i++) {
-                            Position pos = validPositions.get(i);
-                            
-                            // Take snapshot at this position using preprocessed image
-                            captureSnapshotOptimized(pos, width, height, includeCrossCheckBox.isSelected(), 
-                                          horizontalReverseCheckBox.isSelected(), annotationTextCheckBox.isSelected(),
-                                          saveDir, i + 1, preprocessedImage);
-                            
-                            publish((int)((i + 1) * 100.0 / total));
+                        SnapshotJob.ProgressListener listener = (completed, total) -> publish((int)(completed * 100.0 / total));
+                        if (stripJob != null) {
+                            stripJob.run(listener, this::isCancelled);
+                        } else {
+                            job.run(listener, this::isCancelled);
                         }
-                        
-                        // Also export the CSV file
-                        exportPositionsToCSV(saveDir);
-                        
                         return null;
                     }
                     
@@ -1824,10 +3498,28 @@ public class DanceNow implements PlugIn {
                     
                     @Override
                     protected void done() {
+                        takeSnapshotsButton.setEnabled(true);
+                        if (isCancelled()) {
+                            progressLabel.setText("Cancelled");
+                            JOptionPane.showMessageDialog(SnapshotDialog.this,
+                                stripJob != null ? "Snapshot cancelled."
+                                    : "Snapshot cancelled. Run again with the same settings and folder to resume.",
+                                "Cancelled",
+                                JOptionPane.INFORMATION_MESSAGE);
+                            return;
+                        }
                         try {
                             get(); // Check for exceptions
+                            String message = "Snapshots saved successfully!";
+                            if (job.getSkippedCount() > 0) {
+                                message += String.format("\n%d written, %d already done in a previous run.",
+                                    job.getWrittenCount(), job.getSkippedCount());
+                            }
+                            if (job.getCacheHits() > 0) {
+                                message += String.format("\n%d taken from the render cache.", job.getCacheHits());
+                            }
                             JOptionPane.showMessageDialog(SnapshotDialog.this,
-                                "Snapshots saved successfully!",
+                                message,
                                 "Success",
                                 JOptionPane.INFORMATION_MESSAGE);
                             dispose();
@@ -1840,137 +3532,10 @@ public class DanceNow implements PlugIn {
                     }
                 };
                 
+                snapshotWorker = worker;
                 worker.execute();
             }
             
-            private void captureSnapshotOptimized(Position pos, int width, int height, boolean includeCross,
-                                        boolean horizontalReverse, boolean includeAnnotation, 
-                                        File saveDir, int index, ImagePlus processedImage) {
-                // Use preprocessed image if available, otherwise use original
-                ImagePlus workingImage = (processedImage != null) ? processedImage : targetImage;
-                
-                // Navigate to the position
-                workingImage.setZ(pos.z);
-                workingImage.setT(pos.t);
-                
-                // Calculate ROI bounds centered on position
-                int x = pos.x - width / 2;
-                int y = pos.y - height / 2;
-                
-                // Ensure the ROI fits within image bounds
-                // First, clamp the top-left corner
-                x = Math.max(0, x);
-                y = Math.max(0, y);
-                
-                // Then, adjust width and height if they exceed image bounds
-                int actualWidth = Math.min(width, workingImage.getWidth() - x);
-                int actualHeight = Math.min(height, workingImage.getHeight() - y);
-                
-                // If the requested size is larger than the image, adjust to fit
-                if (actualWidth <= 0 || actualHeight <= 0) {
-                    // This shouldn't happen, but handle gracefully
-                    actualWidth = Math.min(width, workingImage.getWidth());
-                    actualHeight = Math.min(height, workingImage.getHeight());
-                    x = Math.max(0, pos.x - actualWidth / 2);
-                    y = Math.max(0, pos.y - actualHeight / 2);
-                    x = Math.min(x, workingImage.getWidth() - actualWidth);
-                    y = Math.min(y, workingImage.getHeight() - actualHeight);
-                }
-                
-                // Set ROI with adjusted bounds
-                Roi roi = new Roi(x, y, actualWidth, actualHeight);
-                workingImage.setRoi(roi);
-                
-                // Crop and duplicate
-                ImagePlus cropped = workingImage.crop("snapshot");
-                
-                // For multi-channel images that are already preprocessed, just flatten
-                if (workingImage.getNChannels() > 1 && workingImage instanceof CompositeImage) {
-                    CompositeImage comp = (CompositeImage) cropped;
-                    cropped = comp.flatten();
-                }
-                
-                // Create overlay for cross and/or annotation
-                Overlay overlay = null;
-                boolean needsFlattening = false;
-                
-                // Add cross if requested
-                if (includeCross) {
-                    if (overlay == null) overlay = new Overlay();
-                    // Use actual cropped dimensions for center calculation
-                    int centerX = cropped.getWidth() / 2;
-                    int centerY = cropped.getHeight() / 2;
-
-                    Line hLine = new Line(centerX - 5, centerY, centerX + 5, centerY);
-                    hLine.setStrokeColor(Color.decode("#FF00FF"));
-                    hLine.setStrokeWidth(1);
-                    overlay.add(hLine);
-
-                    Line vLine = new Line(centerX, centerY - 5, centerX, centerY + 5);
-                    vLine.setStrokeColor(Color.decode("#FF00FF"));
-                    vLine.setStrokeWidth(1);
-                    overlay.add(vLine);
-                    needsFlattening = true;
-                }
-                
-                // Add annotation text if requested
-                if (includeAnnotation) {
-                    if (overlay == null) overlay = new Overlay();
-                    
-                    // Prepare annotation text: position number and note
-                    String annotationText = String.format("#%d", index);
-                    if (pos.note != null && !pos.note.trim().isEmpty()) {
-                        annotationText += ": " + pos.note;
-                    }
-                    
-                    // Create text ROI in top-left corner with some padding
-                    Font font = new Font("Arial", Font.BOLD, 12);
-                    TextRoi textRoi = new TextRoi(5, 5, annotationText, font);
-                    textRoi.setStrokeColor(Color.YELLOW);
-                    textRoi.setFillColor(null);
-                    textRoi.setAntialiased(true);
-                    overlay.add(textRoi);
-                    needsFlattening = true;
-                }
-                
-                // Apply horizontal flip first if requested so text remains readable (not mirrored)
-                if (horizontalReverse) {
-                    ImageProcessor ip = cropped.getProcessor();
-                    ip.flipHorizontal();
-                    cropped.setProcessor(ip);
-                }
-
-                // Now apply overlay (text/cross) and flatten onto the already-reversed image
-                if (overlay != null && needsFlattening) {
-                    cropped.setOverlay(overlay);
-                    cropped = cropped.flatten();
-                }
-                
-                // Save as PNG with appropriate filename
-                String filename;
-                if (horizontalReverse) {
-                    filename = String.format("Position_reverse_%03d.png", index);
-                } else {
-                    filename = String.format("Position_%03d.png", index);
-                }
-                File outputFile = new File(saveDir, filename);
-                IJ.save(cropped, outputFile.getAbsolutePath());
-                
-                // Clear ROI
-                workingImage.deleteRoi();
-            }
-            
-            // Keep the old method for backwards compatibility but mark as deprecated
-            @Deprecated
-            private void captureSnapshot(Position pos, int width, int height, boolean includeCross,
-                                        boolean horizontalReverse, boolean includeAnnotation, 
-                                        JCheckBox[] channels, File saveDir, int index) {
-                // This method is kept for compatibility but not used in optimized flow
-                captureSnapshotOptimized(pos, width, height, includeCross, 
-                                       horizontalReverse, includeAnnotation, 
-                                       saveDir, index, null);
-            }
-            
             private ImagePlus createOptimizedChannelImage(ImagePlus imp, JCheckBox[] channelBoxes) {
                 if (imp.getNChannels() == 1) {
                     return imp;
@@ -2017,25 +3582,6 @@ public class DanceNow implements PlugIn {
                 
                 return RGBStackMerge.mergeChannels(selectedChannels, true);
             }
-            
-            private void exportPositionsToCSV(File saveDir) {
-                File csvFile = new File(saveDir, "positions.csv");
-                try (FileWriter writer = new FileWriter(csvFile)) {
-                    writer.write("X,Y,Z,T,Note\n");
-                    for (Position pos : positions) {
-                        if (pos != null) {
-                            writer.write(String.format("%d,%d,%d,%d,%s\n",
-                                pos.x, pos.y, pos.z, pos.t,
-                                pos.note != null ? pos.note : ""));
-                        }
-                    }
-                } catch (IOException ex) {
-                    JOptionPane.showMessageDialog(this,
-                        "Failed to export CSV: " + ex.getMessage(),
-                        "Export Error",
-                        JOptionPane.ERROR_MESSAGE);
-                }
-            }
         }
         
         @Override
@@ -2043,6 +3589,19 @@ public class DanceNow implements PlugIn {
             if (updateTimer != null) {
                 updateTimer.cancel();
             }
+            thumbnails.shutdown();
+            uninstallPrefetching();
+            if (markers != null) {
+                PositionLayer.removeFrom(markers.getImage(), PositionMarkers.class);
+                markers.getImage().draw();
+                markers = null;
+            }
+            if (heatmap != null) {
+                positions.removeListener(heatmap);
+                PositionLayer.removeFrom(heatmap.getImage(), CoverageHeatmap.class);
+                heatmap.getImage().draw();
+                heatmap = null;
+            }
 
             // Remove mouse listeners from image window
             if (lastImageWindow != null && lastImageWindow.getCanvas() != null) {
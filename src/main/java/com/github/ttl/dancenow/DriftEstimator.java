@@ -0,0 +1,241 @@
+package com.github.ttl.dancenow;
+
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Estimates stage drift by phase correlation between consecutive frames of one channel and slice.
+ * Frames are box-averaged down to at most MAX_SIZE pixels on the longer side, windowed and
+ * transformed, and the peak of the normalized cross-power spectrum gives the shift from each
+ * frame to the next, refined to sub-pixel by a parabola. The frames are split into consecutive
+ * blocks processed in parallel; each block reads its frames once and keeps only the previous
+ * spectrum. Shifts are summed into offsets relative to frame 1.
+ */
+class DriftEstimator {
+    private static final int MAX_SIZE = 256;    // Longer side of the downsampled frames
+
+    private final SnapshotEngine engine;        // Default settings: plain planes, no projection
+    private final int channel, z;
+    private final int factor;                   // Downsampling factor
+    private final int width, height;            // Downsampled frame size
+    private final int fftWidth, fftHeight;      // Powers of two at least the frame size
+    private final double[] window;              // Hann window over the downsampled frame
+
+    DriftEstimator(SnapshotEngine engine, int channel, int z) {
+        ImagePlus imp = engine.getImage();
+        this.engine = engine;
+        this.channel = channel;
+        this.z = z;
+        this.factor = Math.max(1, (Math.max(imp.getWidth(), imp.getHeight()) + MAX_SIZE - 1) / MAX_SIZE);
+        this.width = Math.max(1, imp.getWidth() / factor);
+        this.height = Math.max(1, imp.getHeight() / factor);
+        this.fftWidth = Integer.highestOneBit(Math.max(1, width - 1)) << 1;
+        this.fftHeight = Integer.highestOneBit(Math.max(1, height - 1)) << 1;
+        this.window = new double[width * height];
+        for (int y = 0; y < height; y++) {
+            double wy = 0.5 - 0.5 * Math.cos(2 * Math.PI * (y + 0.5) / height);
+            for (int x = 0; x < width; x++) {
+                window[y * width + x] = wy * (0.5 - 0.5 * Math.cos(2 * Math.PI * (x + 0.5) / width));
+            }
+        }
+    }
+
+    /**
+     * Estimates the offsets of all frames, or returns null if cancelled.
+     */
+    DriftTable run(SnapshotJob.ProgressListener listener, BooleanSupplier cancelled) throws IOException {
+        int nFrames = engine.getNFrames();
+        if (nFrames < 2) {
+            return new DriftTable(new float[2 * nFrames]);
+        }
+        float[] steps = new float[2 * nFrames];     // Shift from frame t-1 to t, at index of t
+        int threads = Math.max(1, Prefs.getThreads());
+        int blocks = Math.max(1, Math.min(nFrames - 1, threads * 4));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int b = 0; b < blocks; b++) {
+                // Block b covers the steps into frames [first, last], reading frames first-1..last
+                int first = 2 + (int) ((long) (nFrames - 1) * b / blocks);
+                int last = 1 + (int) ((long) (nFrames - 1) * (b + 1) / blocks);
+                futures.add(pool.submit(() -> {
+                    double[][] previous = spectrum(first - 1);
+                    for (int t = first; t <= last && !cancelled.getAsBoolean(); t++) {
+                        double[][] current = spectrum(t);
+                        double[] shift = shift(previous, current);
+                        steps[2 * t - 2] = (float) (shift[0] * factor);
+                        steps[2 * t - 1] = (float) (shift[1] * factor);
+                        previous = current;
+                    }
+                    return null;
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                get(futures.get(i));
+                listener.progress(i + 1, futures.size());
+            }
+        } finally {
+            // Blocks not started yet are dropped; running ones finish, since the caller closes the engine next
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+            SnapshotJob.shutdownAndWait(pool);
+        }
+        if (cancelled.getAsBoolean()) {
+            return null;
+        }
+        float[] offsets = new float[2 * nFrames];
+        for (int i = 2; i < offsets.length; i++) {
+            offsets[i] = offsets[i - 2] + steps[i];
+        }
+        return new DriftTable(offsets);
+    }
+
+    /**
+     * Downsampled, windowed, zero-padded frame t transformed to {real, imaginary}.
+     */
+    private double[][] spectrum(int t) throws IOException {
+        ImagePlus imp = engine.getImage();
+        Rectangle full = new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+        ImageProcessor ip = engine.readCrops(channel, z, t, new Rectangle[]{full})[0];
+        double[] small = new double[width * height];
+        double mean = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double sum = 0;
+                for (int dy = 0; dy < factor; dy++) {
+                    for (int dx = 0; dx < factor; dx++) {
+                        sum += ip.getPixelValue(x * factor + dx, y * factor + dy);
+                    }
+                }
+                small[y * width + x] = sum;
+                mean += sum;
+            }
+        }
+        mean /= small.length;
+        double[] re = new double[fftWidth * fftHeight];
+        double[] im = new double[re.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                re[y * fftWidth + x] = (small[y * width + x] - mean) * window[y * width + x];
+            }
+        }
+        fft2D(re, im, false);
+        return new double[][]{re, im};
+    }
+
+    /**
+     * Shift (dx, dy) in downsampled pixels that moves the content of a onto b.
+     */
+    private double[] shift(double[][] a, double[][] b) {
+        int n = fftWidth * fftHeight;
+        double[] re = new double[n], im = new double[n];
+        for (int i = 0; i < n; i++) {
+            // b * conj(a), normalized to unit magnitude
+            double r = b[0][i] * a[0][i] + b[1][i] * a[1][i];
+            double j = b[1][i] * a[0][i] - b[0][i] * a[1][i];
+            double magnitude = Math.hypot(r, j);
+            if (magnitude > 1e-12) {
+                re[i] = r / magnitude;
+                im[i] = j / magnitude;
+            }
+        }
+        fft2D(re, im, true);
+        int peak = 0;
+        for (int i = 1; i < n; i++) {
+            if (re[i] > re[peak]) {
+                peak = i;
+            }
+        }
+        int px = peak % fftWidth, py = peak / fftWidth;
+        double dx = px + parabola(re[py * fftWidth + (px + fftWidth - 1) % fftWidth], re[peak],
+                                  re[py * fftWidth + (px + 1) % fftWidth]);
+        double dy = py + parabola(re[((py + fftHeight - 1) % fftHeight) * fftWidth + px], re[peak],
+                                  re[((py + 1) % fftHeight) * fftWidth + px]);
+        // Shifts past half the transform size wrap around to negative shifts
+        return new double[]{dx > fftWidth / 2.0 ? dx - fftWidth : dx, dy > fftHeight / 2.0 ? dy - fftHeight : dy};
+    }
+
+    private static double parabola(double left, double centre, double right) {
+        double denominator = left - 2 * centre + right;
+        return denominator < 0 ? Math.max(-0.5, Math.min(0.5, 0.5 * (left - right) / denominator)) : 0;
+    }
+
+    /**
+     * In-place 2D FFT of a fftWidth x fftHeight array, rows then columns.
+     */
+    private void fft2D(double[] re, double[] im, boolean inverse) {
+        for (int y = 0; y < fftHeight; y++) {
+            fft(re, im, y * fftWidth, 1, fftWidth, inverse);
+        }
+        for (int x = 0; x < fftWidth; x++) {
+            fft(re, im, x, fftWidth, fftHeight, inverse);
+        }
+    }
+
+    /**
+     * In-place iterative radix-2 FFT of n elements starting at offset, stride apart. The inverse
+     * is not scaled, which does not move the correlation peak.
+     */
+    private static void fft(double[] re, double[] im, int offset, int stride, int n, boolean inverse) {
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                int a = offset + i * stride, b = offset + j * stride;
+                double tr = re[a], ti = im[a];
+                re[a] = re[b];
+                im[a] = im[b];
+                re[b] = tr;
+                im[b] = ti;
+            }
+        }
+        for (int length = 2; length <= n; length <<= 1) {
+            double angle = 2 * Math.PI / length * (inverse ? 1 : -1);
+            double wr = Math.cos(angle), wi = Math.sin(angle);
+            for (int start = 0; start < n; start += length) {
+                double ur = 1, ui = 0;
+                for (int k = 0; k < length / 2; k++) {
+                    int a = offset + (start + k) * stride, b = offset + (start + k + length / 2) * stride;
+                    double vr = re[b] * ur - im[b] * ui, vi = re[b] * ui + im[b] * ur;
+                    re[b] = re[a] - vr;
+                    im[b] = im[a] - vi;
+                    re[a] += vr;
+                    im[a] += vi;
+                    double nr = ur * wr - ui * wi;
+                    ui = ur * wi + ui * wr;
+                    ur = nr;
+                }
+            }
+        }
+    }
+
+    private static void get(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Drift estimation interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Drift estimation failed: " + cause, cause);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.github.ttl.dancenow;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Stage drift per time frame: the X,Y offset at which the content of frame 1 appears in frame t.
+ * While a table is active, saved positions are taken to be in frame 1 coordinates, and navigation
+ * and snapshot crops at frame t are shifted by the offset of t on the fly; stored coordinates are
+ * never rewritten. Offsets are kept as one float array, X and Y interleaved, frame 1 first.
+ */
+class DriftTable {
+    private final float[] offsets;
+
+    DriftTable(float[] offsets) {
+        this.offsets = offsets;
+    }
+
+    int getNFrames() {
+        return offsets.length / 2;
+    }
+
+    /**
+     * Rounded X offset of 1-based frame t; frames past either end use the nearest frame.
+     */
+    int dx(int t) {
+        return Math.round(offsets[2 * index(t)]);
+    }
+
+    int dy(int t) {
+        return Math.round(offsets[2 * index(t) + 1]);
+    }
+
+    private int index(int t) {
+        return Math.max(0, Math.min(t, getNFrames()) - 1);
+    }
+
+    /**
+     * Short identity of the offsets for settings keys.
+     */
+    String key() {
+        return getNFrames() + "@" + Integer.toHexString(Arrays.hashCode(offsets));
+    }
+
+    /**
+     * Writes "T,dX,dY" with one row per frame.
+     */
+    void write(Writer out) throws IOException {
+        out.write("T,dX,dY\n");
+        for (int t = 1; t <= getNFrames(); t++) {
+            out.write(String.format(Locale.ROOT, "%d,%.3f,%.3f\n", t, offsets[2 * t - 2], offsets[2 * t - 1]));
+        }
+    }
+
+    /**
+     * Reads "T,dX,dY" rows as written by {@link #write}; a header and lines that are not numbers
+     * are skipped. Frames missing from the file keep the offset of the frame before them.
+     */
+    static DriftTable read(BufferedReader in) throws IOException {
+        float[] offsets = new float[0];
+        boolean[] present = new boolean[0];
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] parts = line.split(",");
+            if (parts.length < 3) {
+                continue;
+            }
+            int t;
+            float dx, dy;
+            try {
+                t = Integer.parseInt(parts[0].trim());
+                dx = Float.parseFloat(parts[1].trim());
+                dy = Float.parseFloat(parts[2].trim());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (t < 1) {
+                continue;
+            }
+            if (t > present.length) {
+                offsets = Arrays.copyOf(offsets, 2 * t);
+                present = Arrays.copyOf(present, t);
+            }
+            offsets[2 * t - 2] = dx;
+            offsets[2 * t - 1] = dy;
+            present[t - 1] = true;
+        }
+        if (present.length == 0) {
+            throw new IOException("No T,dX,dY rows found");
+        }
+        for (int i = 1; i < present.length; i++) {
+            if (!present[i]) {
+                offsets[2 * i] = offsets[2 * i - 2];
+                offsets[2 * i + 1] = offsets[2 * i - 1];
+            }
+        }
+        return new DriftTable(offsets);
+    }
+}
@@ -0,0 +1,12 @@
+package com.github.ttl.dancenow;
+
+import java.io.IOException;
+
+/**
+ * Sink that stores snapshots as PNG bytes. Lets the job encode on worker threads and
+ * reuse bytes from the render cache without decoding them again.
+ */
+interface EncodedSnapshotSink extends SnapshotSink {
+
+    void writeEncoded(int index, Position pos, byte[] png) throws IOException;
+}
@@ -0,0 +1,186 @@
+package com.github.ttl.dancenow;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import net.imagej.Dataset;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.display.ImageDisplay;
+import net.imagej.display.ImageDisplayService;
+import net.imagej.legacy.LegacyService;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import org.scijava.Context;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Reads crops from the ImgLib2 image behind an ImageJ2 dataset, e.g. a cell-cached, lazily loaded
+ * SCIFIO/N5/HDF5 volume shown as a virtual stack. Each crop is a {@link Views#interval} of the
+ * source, so only the cells that overlap it are loaded, and data far bigger than RAM can be
+ * snapshotted with the same settings as an ordinary ImagePlus.
+ */
+class ImgLib2CropReader implements CropReader {
+    private static final int PARALLEL_PIXELS = 512 * 512;  // Copy larger crops on all cores
+
+    private final RandomAccessibleInterval<? extends RealType<?>> source; // X,Y,C,Z,T
+    private final int nChannels, nSlices;
+    private final int bitDepth;
+
+    ImgLib2CropReader(RandomAccessibleInterval<? extends RealType<?>> source, int nChannels, int nSlices) {
+        this.source = source;
+        this.nChannels = nChannels;
+        this.nSlices = nSlices;
+        Object type = Util.getTypeFromInterval(source);
+        bitDepth = type instanceof UnsignedByteType ? 8 : type instanceof UnsignedShortType ? 16 : 32;
+    }
+
+    /**
+     * Returns a reader for the dataset behind a virtual ImagePlus, or null when there is none
+     * (plain ImageJ 1.x image, in-memory stack, or axes that do not match the ImagePlus).
+     */
+    static ImgLib2CropReader open(ImagePlus imp) {
+        if (!imp.getStack().isVirtual() || imp.changes) {
+            return null;
+        }
+        Object context = IJ.runPlugIn("org.scijava.Context", "");
+        if (!(context instanceof Context)) {
+            return null;
+        }
+        LegacyService legacy = ((Context) context).getService(LegacyService.class);
+        ImageDisplayService displays = ((Context) context).getService(ImageDisplayService.class);
+        if (legacy == null || displays == null) {
+            return null;
+        }
+        ImageDisplay display = legacy.getImageMap().lookupDisplay(imp);
+        Dataset dataset = display != null ? displays.getActiveDataset(display) : null;
+        if (dataset == null) {
+            return null;
+        }
+
+        RandomAccessibleInterval<? extends RealType<?>> view = toXYCZT(dataset);
+        long[] expected = {imp.getWidth(), imp.getHeight(), imp.getNChannels(), imp.getNSlices(), imp.getNFrames()};
+        if (view == null) {
+            return null;
+        }
+        for (int d = 0; d < expected.length; d++) {
+            if (view.dimension(d) != expected[d]) {
+                return null;
+            }
+        }
+        return new ImgLib2CropReader(view, imp.getNChannels(), imp.getNSlices());
+    }
+
+    /**
+     * Reorders the dataset axes to X,Y,C,Z,T, adding singleton axes for missing ones.
+     */
+    private static RandomAccessibleInterval<? extends RealType<?>> toXYCZT(Dataset dataset) {
+        AxisType[] target = {Axes.X, Axes.Y, Axes.CHANNEL, Axes.Z, Axes.TIME};
+        RandomAccessibleInterval<? extends RealType<?>> view = dataset.getImgPlus();
+        List<AxisType> axes = new ArrayList<>();
+        for (int d = 0; d < dataset.numDimensions(); d++) {
+            axes.add(null);
+        }
+        for (AxisType axis : target) {
+            int index = dataset.dimensionIndex(axis);
+            if (index >= 0) {
+                axes.set(index, axis);
+            } else {
+                view = Views.addDimension(view, 0, 0);
+                axes.add(axis);
+            }
+        }
+        if (axes.size() != target.length) {
+            return null; // Extra axes (e.g. spectral) have no ImagePlus equivalent
+        }
+        for (int d = 0; d < target.length; d++) {
+            int from = axes.indexOf(target[d]);
+            if (from != d) {
+                view = Views.moveAxis(view, from, d);
+                axes.add(d, axes.remove(from));
+            }
+        }
+        return view;
+    }
+
+    @Override
+    public ImageProcessor read(int stackIndex, Rectangle rect) {
+        // ImageJ stack index -> zero-based channel, slice and frame
+        int i = stackIndex - 1;
+        long c = i % nChannels;
+        long z = (i / nChannels) % nSlices;
+        long t = i / (nChannels * nSlices);
+        RandomAccessibleInterval<? extends RealType<?>> crop = Views.interval(source,
+            new long[]{rect.x, rect.y, c, z, t},
+            new long[]{rect.x + rect.width - 1, rect.y + rect.height - 1, c, z, t});
+
+        int width = rect.width;
+        switch (bitDepth) {
+            case 8: {
+                byte[] pixels = new byte[width * rect.height];
+                copyRows(crop, rect, (row, ra) -> {
+                    for (int x = 0, n = row * width; x < width; x++, n++, ra.fwd(0)) {
+                        pixels[n] = (byte) (int) ra.get().getRealFloat();
+                    }
+                });
+                return new ByteProcessor(width, rect.height, pixels);
+            }
+            case 16: {
+                short[] pixels = new short[width * rect.height];
+                copyRows(crop, rect, (row, ra) -> {
+                    for (int x = 0, n = row * width; x < width; x++, n++, ra.fwd(0)) {
+                        pixels[n] = (short) (int) ra.get().getRealFloat();
+                    }
+                });
+                return new ShortProcessor(width, rect.height, pixels, null);
+            }
+            default: {
+                float[] pixels = new float[width * rect.height];
+                copyRows(crop, rect, (row, ra) -> {
+                    for (int x = 0, n = row * width; x < width; x++, n++, ra.fwd(0)) {
+                        pixels[n] = ra.get().getRealFloat();
+                    }
+                });
+                return new FloatProcessor(width, rect.height, pixels);
+            }
+        }
+    }
+
+    private interface RowCopy {
+        void copy(int row, RandomAccess<? extends RealType<?>> ra);
+    }
+
+    /**
+     * Runs the row copy with one RandomAccess per row, in parallel for large crops.
+     */
+    private static void copyRows(RandomAccessibleInterval<? extends RealType<?>> crop, Rectangle rect, RowCopy rowCopy) {
+        long[] start = new long[crop.numDimensions()];
+        for (int d = 0; d < start.length; d++) {
+            start[d] = crop.min(d);
+        }
+        IntStream rows = IntStream.range(0, rect.height);
+        if ((long) rect.width * rect.height >= PARALLEL_PIXELS) {
+            rows = rows.parallel();
+        }
+        rows.forEach(row -> {
+            RandomAccess<? extends RealType<?>> ra = crop.randomAccess();
+            long[] position = Arrays.copyOf(start, start.length);
+            position[1] += row;
+            ra.setPosition(position);
+            rowCopy.copy(row, ra);
+        });
+    }
+}
@@ -0,0 +1,212 @@
+package com.github.ttl.dancenow;
+
+import ij.Prefs;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Measures the intensity around every position in every channel: mean, maximum and integrated
+ * intensity of the snapshot window, and the background as the mean of the window's outer border.
+ * Windows are placed and clamped like snapshots, and only their pixels are read. Positions are
+ * processed in chunks: within a chunk they are grouped by plane and measured in parallel, each
+ * task reusing one accumulator, then the chunk's rows are written to the CSV in list order, so
+ * memory stays flat however long the list is. Values are raw pixel values (RGB as luminance).
+ */
+class IntensityMeasurement {
+    static final String[] VALUE_NAMES = {"Mean", "Max", "IntDen", "Background"};
+    private static final int CHUNK = 4096;     // Positions measured before their rows are written
+    private static final int TASK = 256;       // Positions of one plane per task
+
+    private final SnapshotEngine engine;
+    private final List<Position> positions;
+    private final int border;
+    private final int nChannels;
+    private final int threads;
+
+    IntensityMeasurement(SnapshotEngine engine, List<Position> positions, int border) {
+        this.engine = engine;
+        this.positions = positions;
+        this.border = Math.max(1, border);
+        this.nChannels = engine.getNChannels();
+        this.threads = Math.max(1, Prefs.getThreads());
+    }
+
+    static String header(int nChannels) {
+        StringBuilder header = new StringBuilder("Row,X,Y,Z,T");
+        for (int c = 1; c <= nChannels; c++) {
+            for (String name : VALUE_NAMES) {
+                header.append(",C").append(c).append('_').append(name);
+            }
+        }
+        return header.append(",Note\n").toString();
+    }
+
+    /**
+     * Measures all positions and writes one CSV row per non-empty row, in list order. Returns the
+     * values per row, VALUE_NAMES.length per channel, with null for empty rows; returns null if
+     * the job was cancelled.
+     */
+    float[][] run(Writer out, SnapshotJob.ProgressListener listener, BooleanSupplier cancelled) throws IOException {
+        float[][] results = new float[positions.size()][];
+        out.write(header(nChannels));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int first = 0; first < positions.size(); first += CHUNK) {
+                if (cancelled.getAsBoolean()) {
+                    return null;
+                }
+                int end = Math.min(positions.size(), first + CHUNK);
+                double[][] chunk = new double[end - first][];
+                measureChunk(pool, first, end, chunk);
+                for (int row = first; row < end; row++) {
+                    Position pos = positions.get(row);
+                    if (pos != null) {
+                        double[] values = chunk[row - first];
+                        out.write(csvRow(row, pos, values));
+                        // The CSV keeps full precision; the table only needs floats
+                        results[row] = new float[values.length];
+                        for (int i = 0; i < values.length; i++) {
+                            results[row][i] = (float) values[i];
+                        }
+                    }
+                }
+                listener.progress(end, positions.size());
+            }
+            return results;
+        } finally {
+            // The caller closes the engine next, so no batch may still be reading
+            SnapshotJob.shutdownAndWait(pool);
+        }
+    }
+
+    private String csvRow(int row, Position pos, double[] values) {
+        StringBuilder line = new StringBuilder();
+        line.append(row + 1).append(',').append(pos.x).append(',').append(pos.y).append(',')
+            .append(pos.z).append(',').append(pos.t);
+        for (double value : values) {
+            line.append(',').append(value);
+        }
+        // Commas in notes would shift the columns
+        return line.append(',').append(pos.note.replace(",", ";")).append('\n').toString();
+    }
+
+    /**
+     * Measures rows [first, end): positions on the same plane are read together, so a source that
+     * decodes whole planes decodes each plane once per channel.
+     */
+    private void measureChunk(ExecutorService pool, int first, int end, double[][] chunk) throws IOException {
+        Map<Long, List<Integer>> byPlane = new LinkedHashMap<>();
+        for (int row = first; row < end; row++) {
+            Position pos = positions.get(row);
+            if (pos != null) {
+                long plane = ((long) engine.clampZ(pos.z) << 32) | engine.clampT(pos.t);
+                byPlane.computeIfAbsent(plane, k -> new ArrayList<>()).add(row);
+            }
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (List<Integer> rows : byPlane.values()) {
+            for (int from = 0; from < rows.size(); from += TASK) {
+                List<Integer> batch = rows.subList(from, Math.min(rows.size(), from + TASK));
+                futures.add(pool.submit(() -> {
+                    measureBatch(first, batch, chunk);
+                    return null;
+                }));
+            }
+        }
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Measurement interrupted", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException("Measurement failed: " + cause, cause);
+                }
+            }
+        } finally {
+            // After a failure, batches not started yet are dropped
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Measures positions that share one plane into chunk[row - first]. Each of those rows is
+     * written by this task only.
+     */
+    private void measureBatch(int first, List<Integer> rows, double[][] chunk) throws IOException {
+        Position firstPos = positions.get(rows.get(0));
+        int z = engine.clampZ(firstPos.z), t = engine.clampT(firstPos.t);
+        Rectangle[] rects = new Rectangle[rows.size()];
+        for (int i = 0; i < rects.length; i++) {
+            rects[i] = engine.cropRect(positions.get(rows.get(i)));
+            chunk[rows.get(i) - first] = new double[nChannels * VALUE_NAMES.length];
+        }
+        Accumulator acc = new Accumulator();
+        for (int c = 1; c <= nChannels; c++) {
+            ImageProcessor[] crops = engine.readCrops(c, z, t, rects);
+            for (int i = 0; i < crops.length; i++) {
+                acc.measure(crops[i], border);
+                double[] values = chunk[rows.get(i) - first];
+                int offset = (c - 1) * VALUE_NAMES.length;
+                values[offset] = acc.sum / acc.count;
+                values[offset + 1] = acc.max;
+                values[offset + 2] = acc.sum;
+                values[offset + 3] = acc.borderCount > 0 ? acc.borderSum / acc.borderCount : acc.sum / acc.count;
+            }
+        }
+    }
+
+    /**
+     * Window statistics; one instance per task, reset for every window.
+     */
+    private static final class Accumulator {
+        double sum, max, borderSum;
+        int count, borderCount;
+
+        void measure(ImageProcessor ip, int border) {
+            sum = 0;
+            borderSum = 0;
+            max = Double.NEGATIVE_INFINITY;
+            count = 0;
+            borderCount = 0;
+            int width = ip.getWidth(), height = ip.getHeight();
+            boolean rgb = ip instanceof ColorProcessor;
+            for (int y = 0; y < height; y++) {
+                boolean borderRow = y < border || y >= height - border;
+                for (int x = 0; x < width; x++) {
+                    double v = rgb ? ip.getPixelValue(x, y) : ip.getf(x, y);
+                    sum += v;
+                    count++;
+                    if (v > max) {
+                        max = v;
+                    }
+                    if (borderRow || x < border || x >= width - border) {
+                        borderSum += v;
+                        borderCount++;
+                    }
+                }
+            }
+        }
+    }
+}
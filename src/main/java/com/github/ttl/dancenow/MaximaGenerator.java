@@ -0,0 +1,124 @@
+package com.github.ttl.dancenow;
+
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.Roi;
+import ij.plugin.filter.MaximumFinder;
+import ij.process.ImageProcessor;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Generates positions from local maxima: ImageJ's MaximumFinder runs on each selected Z/T plane
+ * of one channel, one task per plane on a fixed pool, and every maximum above the prominence
+ * becomes a position. Maxima can be limited to a selection or to the nonzero pixels of a mask
+ * image. The note of each position records its plane and its score, the pixel value at the
+ * maximum. Results come back in plane order, brightest first within a plane. With a drift table
+ * in the engine settings, positions are stored in frame 1 coordinates; masks apply to the plane
+ * as it is.
+ */
+class MaximaGenerator {
+    private final SnapshotEngine engine;    // Default settings: plain planes, no projection
+    private final int channel;
+    private final double prominence;
+    private final boolean excludeOnEdges;
+    private final Roi maskRoi;              // Image coordinates, or null
+    private final ImageProcessor maskImage; // Same size as the image, nonzero inside, or null
+
+    MaximaGenerator(SnapshotEngine engine, int channel, double prominence, boolean excludeOnEdges,
+                    Roi maskRoi, ImageProcessor maskImage) {
+        this.engine = engine;
+        this.channel = channel;
+        this.prominence = prominence;
+        this.excludeOnEdges = excludeOnEdges;
+        this.maskRoi = maskRoi;
+        this.maskImage = maskImage;
+    }
+
+    /**
+     * Finds the maxima on each plane of zs x ts (1-based). Returns null if cancelled.
+     */
+    List<Position> run(int[] zs, int[] ts, SnapshotJob.ProgressListener listener, BooleanSupplier cancelled)
+            throws IOException {
+        ImagePlus imp = engine.getImage();
+        Rectangle full = new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Prefs.getThreads()));
+        List<Future<List<Position>>> planes = new ArrayList<>();
+        try {
+            for (int t : ts) {
+                for (int z : zs) {
+                    planes.add(pool.submit(() -> cancelled.getAsBoolean() ? null : findMaxima(z, t, full)));
+                }
+            }
+            List<Position> result = new ArrayList<>();
+            for (int i = 0; i < planes.size(); i++) {
+                List<Position> found = get(planes.get(i));
+                if (found == null || cancelled.getAsBoolean()) {
+                    return null;
+                }
+                result.addAll(found);
+                listener.progress(i + 1, planes.size());
+            }
+            return result;
+        } finally {
+            // Planes not started yet are dropped; running ones finish, since the caller closes the engine next
+            for (Future<List<Position>> plane : planes) {
+                plane.cancel(false);
+            }
+            SnapshotJob.shutdownAndWait(pool);
+        }
+    }
+
+    private List<Position> findMaxima(int z, int t, Rectangle full) throws IOException {
+        ImageProcessor ip = engine.readCrops(channel, z, t, new Rectangle[]{full})[0];
+        // MaximumFinder keeps per-call state in its fields, so every plane gets its own instance
+        Polygon maxima = new MaximumFinder().getMaxima(ip, prominence, true, excludeOnEdges);
+        double[] scores = new double[maxima.npoints];
+        List<Integer> inside = new ArrayList<>(maxima.npoints);
+        for (int i = 0; i < maxima.npoints; i++) {
+            if (inMask(maxima.xpoints[i], maxima.ypoints[i])) {
+                scores[i] = ip.getPixelValue(maxima.xpoints[i], maxima.ypoints[i]);
+                inside.add(i);
+            }
+        }
+        inside.sort((a, b) -> Double.compare(scores[b], scores[a]));
+        List<Position> found = new ArrayList<>(inside.size());
+        for (int i : inside) {
+            found.add(new Position(maxima.xpoints[i] - engine.driftX(t), maxima.ypoints[i] - engine.driftY(t), z, t,
+                                   String.format(Locale.ROOT, "Max Z%d T%d score %.1f", z, t, scores[i])));
+        }
+        return found;
+    }
+
+    private boolean inMask(int x, int y) {
+        if (maskRoi != null && !maskRoi.contains(x, y)) {
+            return false;
+        }
+        return maskImage == null || maskImage.getPixelValue(x, y) != 0;
+    }
+
+    private static List<Position> get(Future<List<Position>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Maxima detection interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Maxima detection failed: " + cause, cause);
+        }
+    }
+}
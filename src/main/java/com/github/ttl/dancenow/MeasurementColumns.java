@@ -0,0 +1,94 @@
+package com.github.ttl.dancenow;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.TableColumn;
+import javax.swing.table.TableColumnModel;
+import java.awt.Component;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional measurement columns for the position table: mean and background per channel from the
+ * last intensity measurement. Like the thumbnail column they are view-only columns over the
+ * position model column. Results are keyed by Position object, so they follow rows when the table
+ * is sorted, and a row that is edited afterwards shows empty cells until it is measured again.
+ */
+class MeasurementColumns {
+    private static final int[] SHOWN = {0, 3};  // Indices into IntensityMeasurement.VALUE_NAMES
+    private static final String[] LABELS = {"mean", "bg"};
+
+    private final JTable table;
+    private final List<Position> positions;  // Row-aligned, null for empty rows
+    private final List<TableColumn> columns = new ArrayList<>();
+    private Map<Position, float[]> results = new IdentityHashMap<>();
+
+    MeasurementColumns(JTable table, List<Position> positions) {
+        this.table = table;
+        this.positions = positions;
+    }
+
+    boolean owns(TableColumn column) {
+        return columns.contains(column);
+    }
+
+    /**
+     * Replaces the shown results with a new measurement (values per row, as returned by
+     * {@link IntensityMeasurement#run}) and shows one column per channel and value.
+     */
+    void show(List<Position> measured, float[][] values, int nChannels) {
+        hide();
+        results = new IdentityHashMap<>();
+        for (int row = 0; row < values.length; row++) {
+            if (values[row] != null && measured.get(row) != null) {
+                results.put(measured.get(row), values[row]);
+            }
+        }
+        TableColumnModel columnModel = table.getColumnModel();
+        for (int c = 1; c <= nChannels; c++) {
+            for (int k = 0; k < SHOWN.length; k++) {
+                TableColumn column = new TableColumn(1, 60);
+                column.setHeaderValue("C" + c + " " + LABELS[k]);
+                column.setCellRenderer(new ValueRenderer((c - 1) * IntensityMeasurement.VALUE_NAMES.length + SHOWN[k]));
+                columns.add(column);
+                columnModel.addColumn(column);
+            }
+        }
+    }
+
+    /**
+     * Removes the columns and drops the results.
+     */
+    void hide() {
+        TableColumnModel columnModel = table.getColumnModel();
+        for (TableColumn column : columns) {
+            columnModel.removeColumn(column);
+        }
+        columns.clear();
+        results = new IdentityHashMap<>();
+    }
+
+    boolean isShown() {
+        return !columns.isEmpty();
+    }
+
+    private class ValueRenderer extends DefaultTableCellRenderer {
+        private final int valueIndex;
+
+        ValueRenderer(int valueIndex) {
+            this.valueIndex = valueIndex;
+            setHorizontalAlignment(SwingConstants.RIGHT);
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                                                       boolean hasFocus, int row, int column) {
+            Position pos = row < positions.size() ? positions.get(row) : null;
+            float[] values = pos != null ? results.get(pos) : null;
+            String text = values != null ? String.format("%.1f", values[valueIndex]) : "";
+            return super.getTableCellRendererComponent(table, text, isSelected, hasFocus, row, column);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.ttl.dancenow;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Tiles snapshots into contact sheets of columns x rows (Montage_001.png, ...) and writes
+ * montage_index.csv telling which sheet and tile each position landed in.
+ * Only the sheet being filled is kept in memory; it is saved as soon as it is full.
+ */
+class MontageSink implements SnapshotSink {
+    private final File saveDir;
+    private final String baseName;
+    private final int columns, rows;
+    private final int tileWidth, tileHeight;
+    private final BufferedWriter indexWriter;
+
+    private ColorProcessor sheet;
+    private int sheetNumber = 0;
+    private int tilesOnSheet = 0;
+
+    MontageSink(File saveDir, boolean horizontalReverse, int columns, int rows,
+                int tileWidth, int tileHeight) throws IOException {
+        this.saveDir = saveDir;
+        this.baseName = horizontalReverse ? "Montage_reverse" : "Montage";
+        this.columns = columns;
+        this.rows = rows;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.indexWriter = new BufferedWriter(new FileWriter(new File(saveDir, "montage_index.csv")));
+        indexWriter.write("Index,Sheet,Column,Row,TileX,TileY,X,Y,Z,T,Note\n");
+    }
+
+    @Override
+    public void write(int index, Position pos, ImagePlus snapshot) throws IOException {
+        if (sheet == null) {
+            sheet = new ColorProcessor(columns * tileWidth, rows * tileHeight);
+            sheetNumber++;
+            tilesOnSheet = 0;
+        }
+
+        ImageProcessor ip = snapshot.getProcessor();
+        if (!(ip instanceof ColorProcessor)) {
+            ip = ip.convertToRGB();
+        }
+
+        int column = tilesOnSheet % columns;
+        int row = tilesOnSheet / columns;
+        int tileX = column * tileWidth;
+        int tileY = row * tileHeight;
+        sheet.insert(ip, tileX, tileY);
+        tilesOnSheet++;
+
+        String note = (pos.note != null ? pos.note : "").replace(",", ";");
+        indexWriter.write(String.format("%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%s\n",
+            index, sheetNumber, column + 1, row + 1, tileX, tileY, pos.x, pos.y, pos.z, pos.t, note));
+
+        if (tilesOnSheet == columns * rows) {
+            saveSheet();
+        }
+    }
+
+    private void saveSheet() throws IOException {
+        ImageProcessor toSave = sheet;
+        int usedRows = (tilesOnSheet + columns - 1) / columns;
+        if (usedRows < rows) {
+            // Last sheet: drop the empty rows at the bottom
+            sheet.setRoi(0, 0, sheet.getWidth(), usedRows * tileHeight);
+            toSave = sheet.crop();
+        }
+
+        String name = String.format("%s_%03d.png", baseName, sheetNumber);
+        IJ.save(new ImagePlus(name, toSave), new File(saveDir, name).getAbsolutePath());
+        indexWriter.flush();
+        sheet = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (sheet != null && tilesOnSheet > 0) {
+                saveSheet();
+            }
+        } finally {
+            indexWriter.close();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.github.ttl.dancenow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/**
+ * Finds groups of saved positions that lie within a tolerance of each other: at most radius
+ * pixels apart in XY and at most dz slices and dt frames apart. Positions are hashed into buckets
+ * one tolerance wide, so each one is only compared with the positions in its own and the adjacent
+ * buckets. The comparisons run in parallel and join close pairs in a lock-free union-find; a
+ * group is a connected component, so chains of close positions end up in one group.
+ */
+final class NearDuplicates {
+    private static final int PARALLEL_SIZE = 10000; // Lists at least this long are searched on all cores
+
+    private NearDuplicates() {
+    }
+
+    /**
+     * Returns the groups of two or more rows, each in ascending row order, ordered by first row.
+     * Null entries (empty rows) are ignored.
+     */
+    static List<int[]> find(List<Position> positions, double radius, int dz, int dt) {
+        int n = positions.size();
+        double cellSize = Math.max(1, radius);
+        long[] keys = new long[n];
+        IntStream rows = IntStream.range(0, n);
+        (n >= PARALLEL_SIZE ? rows.parallel() : rows).forEach(i -> {
+            Position pos = positions.get(i);
+            if (pos != null) {
+                keys[i] = bucketKey(cell(pos.x, cellSize), cell(pos.y, cellSize), pos.z / (dz + 1), pos.t / (dt + 1));
+            }
+        });
+        // Hash collisions only merge buckets, which costs comparisons but never changes the result
+        Map<Long, List<Integer>> buckets = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            if (positions.get(i) != null) {
+                buckets.computeIfAbsent(keys[i], k -> new ArrayList<>(2)).add(i);
+            }
+        }
+
+        double radius2 = radius * radius;
+        int zReach = dz > 0 ? 1 : 0, tReach = dt > 0 ? 1 : 0;
+        AtomicIntegerArray parent = new AtomicIntegerArray(n);
+        for (int i = 0; i < n; i++) {
+            parent.set(i, i);
+        }
+        IntStream search = IntStream.range(0, n);
+        (n >= PARALLEL_SIZE ? search.parallel() : search).forEach(i -> {
+            Position a = positions.get(i);
+            if (a == null) {
+                return;
+            }
+            int cx = cell(a.x, cellSize), cy = cell(a.y, cellSize);
+            int bz = a.z / (dz + 1), bt = a.t / (dt + 1);
+            for (int ox = -1; ox <= 1; ox++) {
+                for (int oy = -1; oy <= 1; oy++) {
+                    for (int oz = -zReach; oz <= zReach; oz++) {
+                        for (int ot = -tReach; ot <= tReach; ot++) {
+                            // A bucket reached twice through a collision only repeats unions
+                            List<Integer> members = buckets.get(bucketKey(cx + ox, cy + oy, bz + oz, bt + ot));
+                            if (members == null) {
+                                continue;
+                            }
+                            for (int j : members) {
+                                // Each pair is checked from its lower row only
+                                if (j <= i) {
+                                    continue;
+                                }
+                                Position b = positions.get(j);
+                                double dx = a.x - b.x, dy = a.y - b.y;
+                                if (dx * dx + dy * dy <= radius2 && Math.abs(a.z - b.z) <= dz
+                                        && Math.abs(a.t - b.t) <= dt) {
+                                    union(parent, i, j);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        });
+
+        Map<Integer, List<Integer>> groups = new HashMap<>();
+        List<int[]> result = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (positions.get(i) != null) {
+                groups.computeIfAbsent(root(parent, i), k -> new ArrayList<>()).add(i);
+            }
+        }
+        // The root is the lowest row of its group, so iterating roots in row order keeps the output sorted
+        for (int i = 0; i < n; i++) {
+            List<Integer> group = groups.get(i);
+            if (group != null && group.size() > 1) {
+                result.add(group.stream().mapToInt(Integer::intValue).toArray());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merged position of a group: the rounded centroid, with the distinct non-empty notes joined.
+     */
+    static Position merge(List<Position> positions, int[] group) {
+        double x = 0, y = 0, z = 0, t = 0;
+        Set<String> notes = new LinkedHashSet<>();
+        for (int row : group) {
+            Position pos = positions.get(row);
+            x += pos.x;
+            y += pos.y;
+            z += pos.z;
+            t += pos.t;
+            if (!pos.note.isEmpty()) {
+                notes.add(pos.note);
+            }
+        }
+        int n = group.length;
+        return new Position((int) Math.round(x / n), (int) Math.round(y / n),
+                            (int) Math.round(z / n), (int) Math.round(t / n), String.join("; ", notes));
+    }
+
+    private static int cell(int v, double cellSize) {
+        return (int) Math.floor(v / cellSize);
+    }
+
+    private static long bucketKey(int cx, int cy, int bz, int bt) {
+        long h = cx * 0x9E3779B97F4A7C15L;
+        h = (h ^ cy) * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ bz) * 0x165667B19E3779F9L;
+        return (h ^ bt) * 0x27D4EB2F165667C5L;
+    }
+
+    /**
+     * Root of i, halving the path on the way. Roots always point to themselves, so a stale read
+     * only costs an extra step.
+     */
+    private static int root(AtomicIntegerArray parent, int i) {
+        while (true) {
+            int p = parent.get(i);
+            if (p == i) {
+                return i;
+            }
+            int gp = parent.get(p);
+            parent.compareAndSet(i, p, gp);
+            i = gp;
+        }
+    }
+
+    /**
+     * Links the higher root under the lower one, retrying when another thread linked it first.
+     * Links always point to a lower row, so no cycles can form.
+     */
+    private static void union(AtomicIntegerArray parent, int a, int b) {
+        while (true) {
+            int ra = root(parent, a), rb = root(parent, b);
+            if (ra == rb) {
+                return;
+            }
+            int low = Math.min(ra, rb), high = Math.max(ra, rb);
+            if (parent.compareAndSet(high, high, low)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.ttl.dancenow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Inverted index over the notes of the saved positions: each lower-case word of a note maps to
+ * the positions whose note contains it. Words are kept sorted, so a prefix query is a range of
+ * neighbouring words. Adding or removing a position only touches the words of its own note, so
+ * the index follows the list edit by edit; an edited note arrives as the old position removed
+ * and the new one added.
+ */
+class NoteIndex implements PositionList.Listener {
+    // Word -> positions with that word, counted in case the same object is in the list twice
+    private final TreeMap<String, Map<Position, Integer>> postings = new TreeMap<>();
+
+    @Override
+    public void positionAdded(Position pos) {
+        for (String word : words(pos.note)) {
+            postings.computeIfAbsent(word, k -> new IdentityHashMap<>()).merge(pos, 1, Integer::sum);
+        }
+    }
+
+    @Override
+    public void positionRemoved(Position pos) {
+        for (String word : words(pos.note)) {
+            Map<Position, Integer> members = postings.get(word);
+            if (members != null) {
+                members.computeIfPresent(pos, (k, count) -> count > 1 ? count - 1 : null);
+                if (members.isEmpty()) {
+                    postings.remove(word);
+                }
+            }
+        }
+    }
+
+    /**
+     * Positions whose note has, for every word of the query, a word starting with it ("mito"
+     * matches "mitosis"). Returns null for a query without words. The set compares by identity.
+     */
+    Set<Position> matches(String query) {
+        Set<String> terms = words(query);
+        if (terms.isEmpty()) {
+            return null;
+        }
+        List<Set<Position>> hits = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            Set<Position> termHits = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Map<Position, Integer> members : postings.subMap(term, true, term + Character.MAX_VALUE, true).values()) {
+                termHits.addAll(members.keySet());
+            }
+            hits.add(termHits);
+        }
+        // Intersect starting from the rarest term
+        hits.sort((a, b) -> Integer.compare(a.size(), b.size()));
+        Set<Position> result = hits.get(0);
+        for (int i = 1; i < hits.size() && !result.isEmpty(); i++) {
+            result.retainAll(hits.get(i));
+        }
+        return result;
+    }
+
+    static boolean hasWords(String text) {
+        return !words(text).isEmpty();
+    }
+
+    private static Set<String> words(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.ttl.dancenow;
+
+import ij.ImagePlus;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Writes each snapshot as its own PNG file (Position_001.png, Position_reverse_001.png, ...)
+ */
+class PngDirectorySink implements EncodedSnapshotSink {
+    private final File saveDir;
+    private final boolean horizontalReverse;
+
+    PngDirectorySink(File saveDir, boolean horizontalReverse) {
+        this.saveDir = saveDir;
+        this.horizontalReverse = horizontalReverse;
+    }
+
+    static String fileName(int index, boolean horizontalReverse) {
+        if (horizontalReverse) {
+            return String.format("Position_reverse_%03d.png", index);
+        }
+        return String.format("Position_%03d.png", index);
+    }
+
+    @Override
+    public void write(int index, Position pos, ImagePlus snapshot) throws IOException {
+        writeEncoded(index, pos, SnapshotEncoder.png(snapshot.getProcessor()));
+    }
+
+    @Override
+    public void writeEncoded(int index, Position pos, byte[] png) throws IOException {
+        File outputFile = new File(saveDir, fileName(index, horizontalReverse));
+        Files.write(outputFile.toPath(), png);
+    }
+
+    @Override
+    public void close() {
+        // Nothing to flush - every snapshot is its own file
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.ttl.dancenow;
+
+/**
+ * A saved X,Y,Z,T position with an optional note. After sub-pixel refinement it may also carry
+ * the exact X,Y; x and y are then the rounded values used for navigation and snapshots.
+ */
+class Position {
+    int x, y, z, t;
+    String note;
+    double subX = Double.NaN, subY = Double.NaN;  // Sub-pixel X,Y, NaN when not refined
+
+    Position(int x, int y, int z, int t) {
+        this(x, y, z, t, "");
+    }
+
+    Position(int x, int y, int z, int t, String note) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.t = t;
+        this.note = note != null ? note : "";
+    }
+
+    /**
+     * Position at sub-pixel X,Y; the integer coordinates are the rounded values.
+     */
+    static Position subpixel(double x, double y, int z, int t, String note) {
+        Position pos = new Position((int) Math.round(x), (int) Math.round(y), z, t, note);
+        pos.subX = x;
+        pos.subY = y;
+        return pos;
+    }
+
+    boolean hasSubpixel() {
+        return !Double.isNaN(subX) && !Double.isNaN(subY);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d,%d,%d,%d", x, y, z, t);
+    }
+
+    public String toStringWithNote() {
+        if (note != null && !note.isEmpty()) {
+            return String.format("%d,%d,%d,%d,%s", x, y, z, t, note);
+        }
+        return toString();
+    }
+}
@@ -0,0 +1,185 @@
+package com.github.ttl.dancenow;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uniform grid over the saved positions, one grid per (z,t) plane. Adding or removing a position
+ * touches a single cell, so the index follows the list edit by edit. Nearest-position queries
+ * search outward ring by ring from the query cell and stop as soon as no closer cell can remain;
+ * on sparse planes where that would visit more cells than there are positions, the plane's
+ * positions are scanned directly instead.
+ */
+class PositionIndex implements PositionList.Listener {
+    static final int CELL = 64; // Cell edge in pixels
+
+    private final Map<Long, Plane> planes = new HashMap<>();
+
+    private static final class Plane {
+        final Map<Long, List<Position>> cells = new HashMap<>();
+        int count;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;   // Cell bounds ever occupied
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+    }
+
+    private static long planeKey(int z, int t) {
+        return ((long) z << 32) | (t & 0xffffffffL);
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    private static int cell(double v) {
+        return (int) Math.floor(v / CELL);
+    }
+
+    @Override
+    public void positionAdded(Position pos) {
+        Plane plane = planes.computeIfAbsent(planeKey(pos.z, pos.t), k -> new Plane());
+        int cx = cell(pos.x), cy = cell(pos.y);
+        plane.cells.computeIfAbsent(cellKey(cx, cy), k -> new ArrayList<>(4)).add(pos);
+        plane.count++;
+        plane.minX = Math.min(plane.minX, cx);
+        plane.maxX = Math.max(plane.maxX, cx);
+        plane.minY = Math.min(plane.minY, cy);
+        plane.maxY = Math.max(plane.maxY, cy);
+    }
+
+    @Override
+    public void positionRemoved(Position pos) {
+        long key = planeKey(pos.z, pos.t);
+        Plane plane = planes.get(key);
+        if (plane == null) {
+            return;
+        }
+        long cellKey = cellKey(cell(pos.x), cell(pos.y));
+        List<Position> members = plane.cells.get(cellKey);
+        if (members == null) {
+            return;
+        }
+        for (int i = 0; i < members.size(); i++) {
+            if (members.get(i) == pos) {
+                // Order within a cell does not matter: swap with the last entry
+                members.set(i, members.get(members.size() - 1));
+                members.remove(members.size() - 1);
+                plane.count--;
+                break;
+            }
+        }
+        if (members.isEmpty()) {
+            plane.cells.remove(cellKey);
+        }
+        if (plane.count == 0) {
+            planes.remove(key);
+        }
+    }
+
+    /**
+     * Returns the saved position on plane (z,t) closest to (x,y), or null if the plane has none.
+     */
+    Position nearest(int z, int t, double x, double y) {
+        Plane plane = planes.get(planeKey(z, t));
+        if (plane == null) {
+            return null;
+        }
+        int cx = cell(x), cy = cell(y);
+        int maxRing = Math.max(Math.max(cx - plane.minX, plane.maxX - cx), Math.max(cy - plane.minY, plane.maxY - cy));
+        Nearest best = new Nearest(x, y);
+        if ((2L * maxRing + 1) * (2L * maxRing + 1) > plane.count) {
+            for (List<Position> members : plane.cells.values()) {
+                best.offer(members);
+            }
+            return best.pos;
+        }
+        for (int ring = 0; ring <= maxRing; ring++) {
+            if (ring == 0) {
+                best.offer(plane.cells.get(cellKey(cx, cy)));
+            } else {
+                for (int i = -ring; i <= ring; i++) {
+                    best.offer(plane.cells.get(cellKey(cx + i, cy - ring)));
+                    best.offer(plane.cells.get(cellKey(cx + i, cy + ring)));
+                }
+                for (int i = -ring + 1; i < ring; i++) {
+                    best.offer(plane.cells.get(cellKey(cx - ring, cy + i)));
+                    best.offer(plane.cells.get(cellKey(cx + ring, cy + i)));
+                }
+            }
+            // Every cell beyond this ring is at least ring * CELL away
+            double reach = (double) ring * CELL;
+            if (best.pos != null && best.distance <= reach * reach) {
+                break;
+            }
+        }
+        return best.pos;
+    }
+
+    /**
+     * Receives the occupied cells of a plane; cell (cx,cy) covers pixels [cx*CELL, (cx+1)*CELL).
+     */
+    interface CellVisitor {
+        void visit(int cx, int cy, List<Position> members);
+    }
+
+    /**
+     * Visits every occupied cell of plane (z,t) that overlaps area. The work is bounded by the
+     * number of cells in the area or on the plane, whichever is smaller, not by the number of
+     * positions.
+     */
+    void forEachCell(int z, int t, Rectangle area, CellVisitor visitor) {
+        Plane plane = planes.get(planeKey(z, t));
+        if (plane == null || area.isEmpty()) {
+            return;
+        }
+        int cx0 = Math.max(plane.minX, cell(area.x)), cx1 = Math.min(plane.maxX, cell(area.x + area.width - 1));
+        int cy0 = Math.max(plane.minY, cell(area.y)), cy1 = Math.min(plane.maxY, cell(area.y + area.height - 1));
+        if (cx0 > cx1 || cy0 > cy1) {
+            return;
+        }
+        if ((long) (cx1 - cx0 + 1) * (cy1 - cy0 + 1) > plane.cells.size()) {
+            for (Map.Entry<Long, List<Position>> entry : plane.cells.entrySet()) {
+                int cx = (int) (entry.getKey() >> 32), cy = (int) (long) entry.getKey();
+                if (cx >= cx0 && cx <= cx1 && cy >= cy0 && cy <= cy1) {
+                    visitor.visit(cx, cy, entry.getValue());
+                }
+            }
+        } else {
+            for (int cy = cy0; cy <= cy1; cy++) {
+                for (int cx = cx0; cx <= cx1; cx++) {
+                    List<Position> members = plane.cells.get(cellKey(cx, cy));
+                    if (members != null) {
+                        visitor.visit(cx, cy, members);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Nearest {
+        final double x, y;
+        Position pos;
+        double distance = Double.POSITIVE_INFINITY; // Squared
+
+        Nearest(double x, double y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        void offer(List<Position> members) {
+            if (members == null) {
+                return;
+            }
+            for (Position candidate : members) {
+                double dx = candidate.x - x, dy = candidate.y - y;
+                double d = dx * dx + dy * dy;
+                if (d < distance) {
+                    distance = d;
+                    pos = candidate;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.ttl.dancenow;
+
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+
+import java.awt.Graphics;
+
+/**
+ * Base for display-only overlay layers that draw the saved positions themselves. A layer is a
+ * single ROI covering the image; it is never picked up by clicks and keeps its place in the
+ * overlay when other code replaces it. Positions are stored in frame 1 coordinates; with a drift
+ * table, layers draw them where they appear in the displayed frame.
+ */
+abstract class PositionLayer extends Roi {
+    private DriftTable drift;   // Null when drift correction is off
+    PositionLayer(ImagePlus imp, String name) {
+        super(0, 0, imp.getWidth(), imp.getHeight());
+        setImage(imp);
+        setName(name);
+    }
+
+    void setDrift(DriftTable drift) {
+        this.drift = drift;
+    }
+
+    /**
+     * Offset from stored to displayed coordinates in frame t.
+     */
+    int driftX(int t) {
+        return drift != null ? drift.dx(t) : 0;
+    }
+
+    int driftY(int t) {
+        return drift != null ? drift.dy(t) : 0;
+    }
+
+    /**
+     * Adds the layer to the image's overlay unless it is already there. Stray copies of the same
+     * kind, e.g. from an overlay duplicated while the layer was shown, are removed.
+     */
+    void install(ImagePlus target) {
+        Overlay overlay = target.getOverlay();
+        if (overlay != null && overlay.contains(this)) {
+            return;
+        }
+        if (overlay == null) {
+            overlay = new Overlay();
+        }
+        removeFrom(target, getClass());
+        overlay.add(this);
+        target.setOverlay(overlay);
+    }
+
+    /**
+     * Removes every layer of the given kind from the image's overlay.
+     */
+    static void removeFrom(ImagePlus target, Class<? extends PositionLayer> kind) {
+        Overlay overlay = target.getOverlay();
+        if (overlay == null) {
+            return;
+        }
+        for (int i = overlay.size() - 1; i >= 0; i--) {
+            if (kind.isInstance(overlay.get(i))) {
+                overlay.remove(i);
+            }
+        }
+    }
+
+    @Override
+    public void drawOverlay(Graphics g) {
+        draw(g);
+    }
+
+    @Override
+    public boolean contains(int x, int y) {
+        return false; // Display only: never picked up by clicks on the overlay
+    }
+}
@@ -0,0 +1,166 @@
+package com.github.ttl.dancenow;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Row-aligned position list (null for empty rows) that reports every position entering or leaving
+ * it, so indexes over the positions can be kept up to date one edit at a time instead of being
+ * rebuilt. Positions are treated as values: to change one, set a new object in its row. The row
+ * of a position is remembered too, so finding the row of a position returned by an index does not
+ * scan the list.
+ */
+class PositionList extends ArrayList<Position> {
+    /**
+     * Notified after a position was added to or removed from the list. Empty rows are not reported.
+     */
+    interface Listener {
+        void positionAdded(Position pos);
+
+        void positionRemoved(Position pos);
+    }
+
+    private final List<Listener> listeners = new ArrayList<>();
+    // Position -> a row that held it. Appends and replacements keep it current; inserts and removals
+    // in the middle leave later rows stale, which rowOf notices and repairs with one rebuild.
+    private final Map<Position, Integer> rows = new IdentityHashMap<>();
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+        for (Position pos : this) {
+            if (pos != null) {
+                listener.positionAdded(pos);
+            }
+        }
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void added(Position pos) {
+        if (pos != null) {
+            for (Listener listener : listeners) {
+                listener.positionAdded(pos);
+            }
+        }
+    }
+
+    private void removed(Position pos) {
+        if (pos != null) {
+            for (Listener listener : listeners) {
+                listener.positionRemoved(pos);
+            }
+        }
+    }
+
+    /**
+     * Row holding this exact Position object, or -1.
+     */
+    int rowOf(Position pos) {
+        if (pos == null) {
+            return -1;
+        }
+        Integer row = rows.get(pos);
+        if (row == null || row >= size() || get(row) != pos) {
+            rows.clear();
+            for (int i = size() - 1; i >= 0; i--) {
+                if (get(i) != null) {
+                    rows.put(get(i), i); // Ends with the first row of a repeated object
+                }
+            }
+            row = rows.get(pos);
+        }
+        return row != null ? row : -1;
+    }
+
+    @Override
+    public boolean add(Position pos) {
+        super.add(pos);
+        if (pos != null) {
+            rows.putIfAbsent(pos, size() - 1);
+        }
+        added(pos);
+        return true;
+    }
+
+    @Override
+    public void add(int index, Position pos) {
+        super.add(index, pos);
+        added(pos);
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Position> added) {
+        boolean changed = super.addAll(added);
+        for (Position pos : added) {
+            added(pos);
+        }
+        return changed;
+    }
+
+    @Override
+    public Position set(int index, Position pos) {
+        Position old = super.set(index, pos);
+        if (old != pos) {
+            rows.remove(old, index);
+            if (pos != null) {
+                rows.put(pos, index);
+            }
+            removed(old);
+            added(pos);
+        }
+        return old;
+    }
+
+    @Override
+    public Position remove(int index) {
+        Position old = super.remove(index);
+        rows.remove(old);
+        removed(old);
+        return old;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int index = indexOf(o);
+        if (index < 0) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    /**
+     * Removes every row flagged in drop in one pass, keeping the order of the other rows.
+     */
+    void removeRows(boolean[] drop) {
+        int kept = 0;
+        List<Position> removed = new ArrayList<>();
+        for (int i = 0; i < size(); i++) {
+            if (i < drop.length && drop[i]) {
+                removed.add(get(i));
+            } else {
+                super.set(kept++, get(i));
+            }
+        }
+        super.removeRange(kept, size());
+        for (Position pos : removed) {
+            rows.remove(pos);
+            removed(pos);
+        }
+    }
+
+    @Override
+    public void clear() {
+        List<Position> old = new ArrayList<>(this);
+        super.clear();
+        rows.clear();
+        for (Position pos : old) {
+            removed(pos);
+        }
+    }
+}
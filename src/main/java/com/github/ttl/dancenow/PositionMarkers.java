@@ -0,0 +1,102 @@
+package com.github.ttl.dancenow;
+
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+
+/**
+ * Overlay element that draws the saved positions of the displayed Z/T in a single pass. It is one
+ * ROI for all positions: only the index cells inside the visible source rectangle are visited,
+ * and when there are too many markers to tell apart, occupied cells are merged into screen-sized
+ * bins shaded by count. Drawing cost therefore depends on the view, not on the list length.
+ * With drift, the view is moved into frame 1 coordinates for the index query and the markers
+ * are moved back by the drift of the displayed frame.
+ */
+class PositionMarkers extends PositionLayer {
+    private static final int MAX_MARKERS = 2000;    // More visible positions than this are binned
+    private static final int MIN_CELL_PX = 8;       // Bin when an index cell is smaller on screen
+    private static final int BIN_PX = 12;           // Density bin edge on screen
+    private static final int MARKER_PX = 7;
+    private static final Color MARKER_COLOR = Color.decode("#FFD700");
+
+    private final PositionIndex index;
+
+    PositionMarkers(ImagePlus imp, PositionIndex index) {
+        super(imp, "DanceNow positions");
+        this.index = index;
+    }
+
+    @Override
+    public void draw(Graphics g) {
+        ImageCanvas canvas = imp != null ? imp.getCanvas() : null;
+        if (canvas == null) {
+            return;
+        }
+        int z = imp.getZ(), t = imp.getT();
+        int dx = driftX(t), dy = driftY(t);
+        Rectangle view = new Rectangle(canvas.getSrcRect());
+        view.translate(-dx, -dy);   // Frame 1 coordinates, like the index
+        double mag = canvas.getMagnification();
+
+        int[] visible = new int[1];
+        index.forEachCell(z, t, view, (cx, cy, members) -> visible[0] += members.size());
+        if (visible[0] == 0) {
+            return;
+        }
+        g.setColor(MARKER_COLOR);
+        if (visible[0] <= MAX_MARKERS && PositionIndex.CELL * mag >= MIN_CELL_PX) {
+            drawMarkers(g, canvas, view, z, t, dx, dy);
+        } else {
+            drawDensity(g, canvas, view, mag, z, t, dx, dy);
+        }
+    }
+
+    private void drawMarkers(Graphics g, ImageCanvas canvas, Rectangle view, int z, int t, int dx, int dy) {
+        int half = MARKER_PX / 2;
+        index.forEachCell(z, t, view, (cx, cy, members) -> {
+            for (Position pos : members) {
+                if (view.contains(pos.x, pos.y)) {
+                    int sx = canvas.screenX(pos.x + dx), sy = canvas.screenY(pos.y + dy);
+                    g.drawOval(sx - half, sy - half, MARKER_PX, MARKER_PX);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sums cell counts into bins of whole cells at least BIN_PX wide on screen and shades each
+     * occupied bin by its count relative to the busiest one.
+     */
+    private void drawDensity(Graphics g, ImageCanvas canvas, Rectangle view, double mag, int z, int t, int dx, int dy) {
+        int cellsPerBin = Math.max(1, (int) Math.ceil(BIN_PX / (PositionIndex.CELL * mag)));
+        int binSize = cellsPerBin * PositionIndex.CELL;     // Bin edge in image pixels
+        int bx0 = Math.floorDiv(view.x, binSize), by0 = Math.floorDiv(view.y, binSize);
+        int nx = Math.floorDiv(view.x + view.width - 1, binSize) - bx0 + 1;
+        int ny = Math.floorDiv(view.y + view.height - 1, binSize) - by0 + 1;
+        int[] counts = new int[nx * ny];
+        index.forEachCell(z, t, view, (cx, cy, members) ->
+            counts[(Math.floorDiv(cy, cellsPerBin) - by0) * nx + Math.floorDiv(cx, cellsPerBin) - bx0] += members.size());
+
+        int max = 0;
+        for (int count : counts) {
+            max = Math.max(max, count);
+        }
+        double scale = Math.sqrt(max);
+        for (int by = 0; by < ny; by++) {
+            for (int bx = 0; bx < nx; bx++) {
+                int count = counts[by * nx + bx];
+                if (count == 0) {
+                    continue;
+                }
+                int alpha = (int) Math.round(60 + 160 * Math.sqrt(count) / scale);
+                g.setColor(new Color(MARKER_COLOR.getRed(), MARKER_COLOR.getGreen(), MARKER_COLOR.getBlue(), alpha));
+                int x0 = canvas.screenX((bx0 + bx) * binSize + dx), y0 = canvas.screenY((by0 + by) * binSize + dy);
+                int x1 = canvas.screenX((bx0 + bx + 1) * binSize + dx), y1 = canvas.screenY((by0 + by + 1) * binSize + dy);
+                g.fillRect(x0, y0, Math.max(1, x1 - x0 - 1), Math.max(1, y1 - y0 - 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.github.ttl.dancenow;
+
+import ij.Prefs;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Moves positions to the intensity peak near them: the background-subtracted, intensity-weighted
+ * centroid within a radius, or the peak of a three-point Gaussian fit around the brightest pixel.
+ * Only the window around each position is read, from the channel being refined. Positions are
+ * sorted by plane and split recursively on a fork-join pool, so each leaf mostly reads crops from
+ * one plane in a single call. With a drift table in the engine settings, windows are read at the
+ * drifted location and results are moved back to the frame 1 coordinates of the list.
+ */
+class PositionRefiner {
+    private static final int LEAF = 256;    // Positions per fork-join leaf
+
+    enum Method {
+        CENTROID("Intensity-weighted centroid"),
+        GAUSSIAN("Gaussian peak fit");
+
+        private final String label;
+
+        Method(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private final SnapshotEngine engine;    // Window size 2 * radius + 1
+    private final int channel;
+    private final int radius;
+    private final Method method;
+    private final boolean keepSubpixel;
+
+    PositionRefiner(SnapshotEngine engine, int channel, int radius, Method method, boolean keepSubpixel) {
+        this.engine = engine;
+        this.channel = channel;
+        this.radius = radius;
+        this.method = method;
+        this.keepSubpixel = keepSubpixel;
+    }
+
+    /**
+     * Settings for the engine passed to the constructor: a window just large enough for radius.
+     */
+    static SnapshotSettings windowSettings(int radius) {
+        SnapshotSettings settings = new SnapshotSettings();
+        settings.width = 2 * radius + 1;
+        settings.height = 2 * radius + 1;
+        return settings;
+    }
+
+    /**
+     * Returns the refined position for every row, or null where the row is empty or the position
+     * did not move.
+     */
+    Position[] refine(List<Position> positions) throws IOException {
+        Integer[] order = new Integer[positions.size()];
+        int n = 0;
+        for (int i = 0; i < positions.size(); i++) {
+            if (positions.get(i) != null) {
+                order[n++] = i;
+            }
+        }
+        Integer[] rows = Arrays.copyOf(order, n);
+        Arrays.sort(rows, (a, b) -> {
+            Position pa = positions.get(a), pb = positions.get(b);
+            int c = Integer.compare(engine.clampT(pa.t), engine.clampT(pb.t));
+            return c != 0 ? c : Integer.compare(engine.clampZ(pa.z), engine.clampZ(pb.z));
+        });
+
+        Position[] refined = new Position[positions.size()];
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Prefs.getThreads()));
+        try {
+            pool.invoke(new RefineTask(positions, rows, 0, rows.length, refined));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            // After a failure, sibling tasks may still be reading; the caller closes the engine next
+            SnapshotJob.shutdownAndWait(pool);
+        }
+        return refined;
+    }
+
+    private class RefineTask extends RecursiveAction {
+        private final List<Position> positions;
+        private final Integer[] rows;
+        private final int from, to;
+        private final Position[] refined;
+
+        RefineTask(List<Position> positions, Integer[] rows, int from, int to, Position[] refined) {
+            this.positions = positions;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.refined = refined;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RefineTask(positions, rows, from, mid, refined),
+                          new RefineTask(positions, rows, mid, to, refined));
+                return;
+            }
+            try {
+                // Runs of positions on the same plane are read with one call
+                int start = from;
+                while (start < to) {
+                    Position first = positions.get(rows[start]);
+                    int z = engine.clampZ(first.z), t = engine.clampT(first.t);
+                    int end = start + 1;
+                    while (end < to && engine.clampZ(positions.get(rows[end]).z) == z
+                           && engine.clampT(positions.get(rows[end]).t) == t) {
+                        end++;
+                    }
+                    Rectangle[] rects = new Rectangle[end - start];
+                    for (int i = 0; i < rects.length; i++) {
+                        rects[i] = engine.cropRect(positions.get(rows[start + i]));
+                    }
+                    ImageProcessor[] crops = engine.readCrops(channel, z, t, rects);
+                    for (int i = 0; i < rects.length; i++) {
+                        int row = rows[start + i];
+                        // Refine in the coordinates of the stored position
+                        Rectangle rect = new Rectangle(rects[i]);
+                        rect.translate(-engine.driftX(t), -engine.driftY(t));
+                        refined[row] = refineOne(positions.get(row), crops[i], rect);
+                    }
+                    start = end;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Refines one position from its window, or returns null if it stays where it is.
+     */
+    private Position refineOne(Position pos, ImageProcessor ip, Rectangle rect) {
+        double[] peak = method == Method.CENTROID ? centroid(pos, ip, rect) : gaussianPeak(pos, ip, rect);
+        if (peak == null) {
+            return null;
+        }
+        double x = peak[0], y = peak[1];
+        Position moved = keepSubpixel
+            ? Position.subpixel(x, y, pos.z, pos.t, pos.note)
+            : new Position((int) Math.round(x), (int) Math.round(y), pos.z, pos.t, pos.note);
+        boolean same = moved.x == pos.x && moved.y == pos.y
+            && (!keepSubpixel || (moved.subX == pos.subX && moved.subY == pos.subY));
+        return same ? null : moved;
+    }
+
+    /**
+     * Centroid of (value - window minimum) over pixels within radius of the position.
+     */
+    private double[] centroid(Position pos, ImageProcessor ip, Rectangle rect) {
+        double min = Double.POSITIVE_INFINITY;
+        for (int y = 0; y < ip.getHeight(); y++) {
+            for (int x = 0; x < ip.getWidth(); x++) {
+                if (inside(pos, rect, x, y)) {
+                    min = Math.min(min, ip.getPixelValue(x, y));
+                }
+            }
+        }
+        double sum = 0, sumX = 0, sumY = 0;
+        for (int y = 0; y < ip.getHeight(); y++) {
+            for (int x = 0; x < ip.getWidth(); x++) {
+                if (inside(pos, rect, x, y)) {
+                    double w = ip.getPixelValue(x, y) - min;
+                    sum += w;
+                    sumX += w * (rect.x + x);
+                    sumY += w * (rect.y + y);
+                }
+            }
+        }
+        return sum > 0 ? new double[]{sumX / sum, sumY / sum} : null;
+    }
+
+    /**
+     * Brightest pixel within radius, shifted by a Gaussian through it and its two neighbours in
+     * X and in Y (a parabola through the logarithms). Peaks on the window edge are not shifted.
+     */
+    private double[] gaussianPeak(Position pos, ImageProcessor ip, Rectangle rect) {
+        int px = -1, py = -1;
+        double max = Double.NEGATIVE_INFINITY, min = Double.POSITIVE_INFINITY;
+        for (int y = 0; y < ip.getHeight(); y++) {
+            for (int x = 0; x < ip.getWidth(); x++) {
+                if (inside(pos, rect, x, y)) {
+                    double v = ip.getPixelValue(x, y);
+                    min = Math.min(min, v);
+                    if (v > max) {
+                        max = v;
+                        px = x;
+                        py = y;
+                    }
+                }
+            }
+        }
+        if (px < 0 || max <= min) {
+            return null;
+        }
+        double offset = min - 1e-6 * (max - min);   // Keep every sample positive for the logarithm
+        double dx = 0, dy = 0;
+        if (px > 0 && px < ip.getWidth() - 1) {
+            dx = logParabola(ip.getPixelValue(px - 1, py) - offset, max - offset, ip.getPixelValue(px + 1, py) - offset);
+        }
+        if (py > 0 && py < ip.getHeight() - 1) {
+            dy = logParabola(ip.getPixelValue(px, py - 1) - offset, max - offset, ip.getPixelValue(px, py + 1) - offset);
+        }
+        return new double[]{rect.x + px + dx, rect.y + py + dy};
+    }
+
+    private static double logParabola(double left, double centre, double right) {
+        double l = Math.log(left), c = Math.log(centre), r = Math.log(right);
+        double denominator = 2 * (l - 2 * c + r);
+        double shift = denominator != 0 ? (l - r) / denominator : 0;
+        return Math.max(-0.5, Math.min(0.5, shift));
+    }
+
+    private boolean inside(Position pos, Rectangle rect, int x, int y) {
+        double dx = rect.x + x - pos.x, dy = rect.y + y - pos.y;
+        return dx * dx + dy * dy <= (double) radius * radius;
+    }
+}
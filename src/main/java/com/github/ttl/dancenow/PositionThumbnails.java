@@ -0,0 +1,262 @@
+package com.github.ttl.dancenow;
+
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.process.ImageProcessor;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.TableColumn;
+import java.awt.Component;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Optional thumbnail column for the position table. Thumbnails are requested by the cell renderer,
+ * so only rows JTable actually paints are rendered. Pixel reads run on one background thread;
+ * queued work for rows scrolled out of view is cancelled, and finished thumbnails are kept in a
+ * bounded LRU. The engine itself is built on the same thread, since opening its reader touches
+ * the file; rows show a placeholder until it is ready. All bookkeeping happens on the event
+ * dispatch thread, so painting never waits.
+ */
+class PositionThumbnails {
+    static final int SIZE = 40;             // Thumbnail edge in the table, pixels
+    private static final int CROP = 64;     // Crop around the position before scaling down
+    private static final int MAX_CACHED = 512;
+
+    private final JTable table;
+    private final List<Position> positions;  // Row-aligned, null for empty rows
+    private final TableColumn column;
+    private final ExecutorService executor;
+    private final Map<String, Future<?>> pending = new HashMap<>();
+    private final LinkedHashMap<String, BufferedImage> thumbnails =
+        new LinkedHashMap<String, BufferedImage>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+                return size() > MAX_CACHED;
+            }
+        };
+
+    // Cache key per position for the current engine. Positions are treated as values (replaced,
+    // never edited in place), so the key only changes with the engine. Weak, so removed positions drop out.
+    private final Map<Position, String> keys = new WeakHashMap<>();
+
+    private SnapshotEngine engine;          // Null until the background build finishes
+    private ImagePlus engineImage;          // Image and display range of the current or pending engine
+    private double engineMin, engineMax;
+    private int engineGeneration = 0;       // Bumped per build, so a superseded build is discarded
+    private DriftTable drift;               // Applied to the crops like in snapshots, null for none
+
+    PositionThumbnails(JTable table, List<Position> positions) {
+        this.table = table;
+        this.positions = positions;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "DanceNow thumbnails");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // View-only column: it shares the position model column but paints the crop instead of the text
+        column = new TableColumn(1, SIZE + 8);
+        column.setHeaderValue("");
+        column.setMinWidth(SIZE + 8);
+        column.setMaxWidth(SIZE + 8);
+        column.setCellRenderer(new ThumbnailRenderer());
+    }
+
+    TableColumn getColumn() {
+        return column;
+    }
+
+    /**
+     * Returns the thumbnail for the row, or null and queues it if it is not rendered yet.
+     */
+    private BufferedImage get(ImagePlus imp, Position pos) {
+        if (!updateEngine(imp)) {
+            return null;
+        }
+        String key = key(pos);
+        BufferedImage image = thumbnails.get(key);
+        if (image == null && !pending.containsKey(key)) {
+            final SnapshotEngine source = engine;
+            pending.put(key, executor.submit(() -> {
+                BufferedImage rendered = null;
+                try {
+                    ImageProcessor ip = source.render(pos, 0).getProcessor();
+                    // Edge crops are smaller than CROP; keep their aspect ratio
+                    double scale = (double) SIZE / Math.max(ip.getWidth(), ip.getHeight());
+                    int width = Math.max(1, (int) Math.round(ip.getWidth() * scale));
+                    int height = Math.max(1, (int) Math.round(ip.getHeight() * scale));
+                    rendered = ip.resize(width, height, true).getBufferedImage();
+                } catch (IOException | RuntimeException e) {
+                    // Image closed or changed underneath us - leave the cell empty
+                }
+                final BufferedImage result = rendered;
+                SwingUtilities.invokeLater(() -> {
+                    pending.remove(key);
+                    if (result != null && source == engine) {
+                        thumbnails.put(key, result);
+                        table.repaint();
+                    }
+                });
+            }));
+        }
+        return image;
+    }
+
+    private String key(Position pos) {
+        return keys.computeIfAbsent(pos, p -> engine.cacheKey(p, 0));
+    }
+
+    /**
+     * Starts a new engine build when the image or its display range changed. Returns true when an
+     * engine for the current state is ready; false while it is being built or when there is no image.
+     */
+    private boolean updateEngine(ImagePlus imp) {
+        if (imp == null) {
+            return false;
+        }
+        if (engineImage != imp
+                || engineMin != imp.getDisplayRangeMin() || engineMax != imp.getDisplayRangeMax()) {
+            SnapshotSettings settings = new SnapshotSettings();
+            settings.width = CROP;
+            settings.height = CROP;
+            settings.drift = drift;
+            cancelAll();
+            closeEngine();
+            engineImage = imp;
+            engineMin = imp.getDisplayRangeMin();
+            engineMax = imp.getDisplayRangeMax();
+            final int generation = ++engineGeneration;
+            executor.submit(() -> {
+                SnapshotEngine built;
+                try {
+                    built = new SnapshotEngine(imp, settings);
+                } catch (RuntimeException e) {
+                    return; // Image closed underneath us - rows keep their placeholder
+                }
+                SwingUtilities.invokeLater(() -> {
+                    if (generation == engineGeneration) {
+                        engine = built;
+                        table.repaint();
+                    } else {
+                        close(built);
+                    }
+                });
+            });
+        }
+        return engine != null;
+    }
+
+    /**
+     * Cancels queued renders for rows outside the visible viewport. Running renders finish normally.
+     */
+    void cancelOffscreen() {
+        if (engine == null || pending.isEmpty()) {
+            return;
+        }
+        Rectangle visible = table.getVisibleRect();
+        int first = table.rowAtPoint(visible.getLocation());
+        int last = table.rowAtPoint(new Point(visible.x, visible.y + visible.height - 1));
+        if (first < 0) first = 0;
+        if (last < 0) last = table.getRowCount() - 1;
+
+        Set<String> keep = new HashSet<>();
+        for (int row = first; row <= last && row < positions.size(); row++) {
+            Position pos = positions.get(row);
+            if (pos != null) {
+                keep.add(key(pos));
+            }
+        }
+        Iterator<Map.Entry<String, Future<?>>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Future<?>> entry = it.next();
+            if (!keep.contains(entry.getKey())) {
+                entry.getValue().cancel(false);
+                it.remove();
+            }
+        }
+    }
+
+    private void cancelAll() {
+        for (Future<?> future : pending.values()) {
+            future.cancel(false);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Crops follow the drift table from now on; thumbnails are rebuilt on the next paint.
+     */
+    void setDrift(DriftTable drift) {
+        this.drift = drift;
+        clear();
+        table.repaint();
+    }
+
+    /**
+     * Drops queued work and cached thumbnails, e.g. when the column is hidden.
+     */
+    void clear() {
+        cancelAll();
+        thumbnails.clear();
+        closeEngine();
+        engineImage = null;
+    }
+
+    /**
+     * Drops the current engine and any build still running, so the next paint starts a new one.
+     */
+    private void closeEngine() {
+        engineGeneration++;
+        keys.clear();
+        if (engine != null) {
+            close(engine);
+            engine = null;
+        }
+    }
+
+    private static void close(SnapshotEngine engine) {
+        try {
+            engine.close();
+        } catch (IOException e) {
+            // Nothing left to read from it anyway
+        }
+    }
+
+    void shutdown() {
+        clear();
+        executor.shutdown();
+    }
+
+    private class ThumbnailRenderer extends DefaultTableCellRenderer {
+        ThumbnailRenderer() {
+            setHorizontalAlignment(SwingConstants.CENTER);
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                                                       boolean hasFocus, int row, int column) {
+            super.getTableCellRendererComponent(table, "", isSelected, hasFocus, row, column);
+            Position pos = row < positions.size() ? positions.get(row) : null;
+            ImagePlus imp = WindowManager.getCurrentImage();
+            BufferedImage image = pos != null ? get(imp, pos) : null;
+            setIcon(image != null ? new ImageIcon(image) : null);
+            setText(image == null && pos != null && imp != null ? "..." : ""); // Still rendering
+            return this;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.github.ttl.dancenow;
+
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * Follows positions through time by template matching. The template is the patch around a
+ * position in its own frame; in each next (or previous) frame only a window of the template size
+ * plus the search distance on every side is read, and the position moves to the placement with
+ * the highest normalized cross-correlation. Window sums come from integral images, so each
+ * placement costs one pass over the template. A track stops when the best correlation drops below
+ * the minimum score. Positions are tracked in parallel, one task per position. Matching works on
+ * the frames as they are; with a drift table in the engine settings, positions are converted from
+ * and back to frame 1 coordinates at either end. Every tracked position is labelled with the
+ * identifier of its track, e.g. "mito [track 12] T5 ncc 0.93", so tracks stay apart in the list.
+ */
+class PositionTracker {
+    private static final Pattern TRACK_LABEL = Pattern.compile("\\[track \\d+\\]");
+
+    private final SnapshotEngine engine;
+    private final int channel;
+    private final int templateWidth, templateHeight;
+    private final int search;
+    private final double minScore;
+    private final boolean updateTemplate;
+
+    PositionTracker(SnapshotEngine engine, int channel, int templateSize, int search, double minScore,
+                    boolean updateTemplate) {
+        ImagePlus imp = engine.getImage();
+        this.engine = engine;
+        this.channel = channel;
+        this.templateWidth = Math.min(templateSize, imp.getWidth());
+        this.templateHeight = Math.min(templateSize, imp.getHeight());
+        this.search = search;
+        this.minScore = minScore;
+        this.updateTemplate = updateTemplate;
+    }
+
+    /**
+     * True for a position written by tracking, recognised by the track label in its note.
+     */
+    static boolean isTracked(Position pos) {
+        return TRACK_LABEL.matcher(pos.note).find();
+    }
+
+    /**
+     * Tracks each position from its own frame forwards to lastT and backwards to firstT; trackIds
+     * holds the identifier for each start, e.g. its row number. Returns one track per position, in
+     * frame order and without the starting position itself; returns null if cancelled.
+     */
+    List<List<Position>> run(List<Position> starts, int[] trackIds, int firstT, int lastT,
+                             SnapshotJob.ProgressListener listener, BooleanSupplier cancelled) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Prefs.getThreads()));
+        List<Future<List<Position>>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < starts.size(); i++) {
+                Position start = starts.get(i);
+                String label = (start.note.isEmpty() ? "" : start.note + " ") + "[track " + trackIds[i] + "]";
+                futures.add(pool.submit(() -> track(start, label, firstT, lastT, cancelled)));
+            }
+            List<List<Position>> tracks = new ArrayList<>(starts.size());
+            for (int i = 0; i < futures.size(); i++) {
+                List<Position> track = get(futures.get(i));
+                if (track == null) {
+                    return null;
+                }
+                tracks.add(track);
+                listener.progress(i + 1, futures.size());
+            }
+            return tracks;
+        } finally {
+            // Tracks not started yet are dropped; running ones finish, since the caller closes the engine next
+            for (Future<List<Position>> future : futures) {
+                future.cancel(false);
+            }
+            SnapshotJob.shutdownAndWait(pool);
+        }
+    }
+
+    private List<Position> track(Position start, String label, int firstT, int lastT, BooleanSupplier cancelled)
+            throws IOException {
+        int z = engine.clampZ(start.z), t0 = engine.clampT(start.t);
+        int startX = start.x + engine.driftX(t0), startY = start.y + engine.driftY(t0);
+        Rectangle rect = clampedRect(startX, startY, templateWidth, templateHeight);
+        float[] template = pixels(engine.readCrops(channel, z, t0, new Rectangle[]{rect})[0]);
+        // The position's offset inside the template; differs from the centre only at image edges
+        int anchorX = startX - rect.x, anchorY = startY - rect.y;
+
+        // A start outside [firstT, lastT] is followed from the nearest end of the range
+        List<Position> backward = follow(label, startX, startY, template, anchorX, anchorY, z,
+                                         Math.min(t0 - 1, lastT), firstT, -1, cancelled);
+        List<Position> forward = follow(label, startX, startY, template, anchorX, anchorY, z,
+                                        Math.max(t0 + 1, firstT), lastT, 1, cancelled);
+        if (backward == null || forward == null) {
+            return null;
+        }
+        List<Position> track = new ArrayList<>(backward.size() + forward.size());
+        for (int i = backward.size() - 1; i >= 0; i--) {
+            track.add(backward.get(i));
+        }
+        track.addAll(forward);
+        return track;
+    }
+
+    /**
+     * Follows one position, starting at (x, y) in its own frame, frame by frame from t to end
+     * (inclusive) in direction step.
+     */
+    private List<Position> follow(String label, int x, int y, float[] template, int anchorX, int anchorY, int z,
+                                  int t, int end, int step, BooleanSupplier cancelled) throws IOException {
+        List<Position> found = new ArrayList<>();
+        float[] current = template;
+        for (; step > 0 ? t <= end : t >= end; t += step) {
+            if (cancelled.getAsBoolean()) {
+                return null;
+            }
+            Rectangle window = clampedRect(x - anchorX + templateWidth / 2, y - anchorY + templateHeight / 2,
+                                           templateWidth + 2 * search, templateHeight + 2 * search);
+            float[] pixels = pixels(engine.readCrops(channel, z, t, new Rectangle[]{window})[0]);
+            Match match = bestMatch(current, pixels, window.width, window.height);
+            if (match.score < minScore) {
+                break;
+            }
+            x = window.x + match.x + anchorX;
+            y = window.y + match.y + anchorY;
+            found.add(new Position(x - engine.driftX(t), y - engine.driftY(t), z, t, String.format(Locale.ROOT,
+                "%s T%d ncc %.2f", label, t, match.score)));
+            if (updateTemplate) {
+                current = extract(pixels, window.width, match.x, match.y);
+            }
+        }
+        return found;
+    }
+
+    private static final class Match {
+        int x, y;
+        double score = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Placement of the template in the window with the highest normalized cross-correlation.
+     */
+    private Match bestMatch(float[] template, float[] window, int width, int height) {
+        int tw = templateWidth, th = templateHeight, n = tw * th;
+        double mean = 0;
+        for (float v : template) {
+            mean += v;
+        }
+        mean /= n;
+        double[] centred = new double[n];
+        double templateNorm = 0;
+        for (int i = 0; i < n; i++) {
+            centred[i] = template[i] - mean;
+            templateNorm += centred[i] * centred[i];
+        }
+
+        // Integral images of the window and its square, one row and column larger
+        double[] sum = new double[(width + 1) * (height + 1)];
+        double[] sum2 = new double[(width + 1) * (height + 1)];
+        for (int y = 0; y < height; y++) {
+            double row = 0, row2 = 0;
+            for (int x = 0; x < width; x++) {
+                double v = window[y * width + x];
+                row += v;
+                row2 += v * v;
+                int i = (y + 1) * (width + 1) + x + 1;
+                sum[i] = sum[i - width - 1] + row;
+                sum2[i] = sum2[i - width - 1] + row2;
+            }
+        }
+
+        Match best = new Match();
+        for (int oy = 0; oy + th <= height; oy++) {
+            for (int ox = 0; ox + tw <= width; ox++) {
+                double cross = 0;
+                for (int y = 0; y < th; y++) {
+                    int w = (oy + y) * width + ox, c = y * tw;
+                    for (int x = 0; x < tw; x++) {
+                        cross += window[w + x] * centred[c + x];
+                    }
+                }
+                double s = boxSum(sum, width, ox, oy), s2 = boxSum(sum2, width, ox, oy);
+                double variance = s2 - s * s / n;
+                double score = variance > 0 && templateNorm > 0 ? cross / Math.sqrt(variance * templateNorm) : 0;
+                if (score > best.score) {
+                    best.score = score;
+                    best.x = ox;
+                    best.y = oy;
+                }
+            }
+        }
+        return best;
+    }
+
+    private double boxSum(double[] integral, int width, int x, int y) {
+        int stride = width + 1;
+        int x1 = x + templateWidth, y1 = y + templateHeight;
+        return integral[y1 * stride + x1] - integral[y * stride + x1] - integral[y1 * stride + x] + integral[y * stride + x];
+    }
+
+    private float[] extract(float[] window, int width, int ox, int oy) {
+        float[] patch = new float[templateWidth * templateHeight];
+        for (int y = 0; y < templateHeight; y++) {
+            System.arraycopy(window, (oy + y) * width + ox, patch, y * templateWidth, templateWidth);
+        }
+        return patch;
+    }
+
+    /**
+     * Rectangle of the given size centred on (x, y), shifted and cut to fit the image.
+     */
+    private Rectangle clampedRect(int x, int y, int width, int height) {
+        ImagePlus imp = engine.getImage();
+        width = Math.min(width, imp.getWidth());
+        height = Math.min(height, imp.getHeight());
+        int left = Math.max(0, Math.min(x - width / 2, imp.getWidth() - width));
+        int top = Math.max(0, Math.min(y - height / 2, imp.getHeight() - height));
+        return new Rectangle(left, top, width, height);
+    }
+
+    private static float[] pixels(ImageProcessor ip) {
+        float[] pixels = new float[ip.getWidth() * ip.getHeight()];
+        for (int y = 0, i = 0; y < ip.getHeight(); y++) {
+            for (int x = 0; x < ip.getWidth(); x++) {
+                pixels[i++] = ip.getPixelValue(x, y);
+            }
+        }
+        return pixels;
+    }
+
+    private static List<Position> get(Future<List<Position>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Tracking interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Tracking failed: " + cause, cause);
+        }
+    }
+}
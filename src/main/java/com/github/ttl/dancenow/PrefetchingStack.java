@@ -0,0 +1,263 @@
+package com.github.ttl.dancenow;
+
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.plugin.FileInfoVirtualStack;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Virtual stack wrapper that loads planes ahead of navigation. The original stack stays the source
+ * of all pixels; planes requested with {@link #prefetch} are read on a small background pool into
+ * an LRU capped by bytes, and ImageJ's own slice reads are served from it when they hit. Callers
+ * always get a copy, so editing the displayed plane never changes the cached one. {@link #uninstall}
+ * puts the original stack back.
+ */
+class PrefetchingStack extends VirtualStack {
+    private static final int THREADS = 2;
+
+    private final ImageStack source;
+    private final long maxBytes;
+    private final long planeBytes;
+    private final Object readLock = new Object();  // Serializes reads from sources that share one reader
+    private final boolean parallelReads;
+    private final ThreadPoolExecutor pool;
+    private final Map<Integer, Future<?>> loading = new HashMap<>();
+    private final LinkedHashMap<Integer, ImageProcessor> planes = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    private PrefetchingStack(ImageStack source, long maxBytes) {
+        super(source.getWidth(), source.getHeight(), source.getColorModel(), null);
+        this.source = source;
+        this.maxBytes = maxBytes;
+        int bitDepth = source.getBitDepth();
+        this.planeBytes = (long) source.getWidth() * source.getHeight() * (bitDepth == 24 ? 4 : Math.max(1, bitDepth / 8));
+        // FileInfoVirtualStack opens the file for every read; other virtual stacks (e.g. Bio-Formats)
+        // may share a single reader between calls
+        this.parallelReads = source instanceof FileInfoVirtualStack;
+        this.pool = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "DanceNow prefetch");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the prefetching stack of a virtual image, installing it on first use, or null for
+     * images held in memory. Display settings are kept across the stack swap.
+     */
+    static PrefetchingStack install(ImagePlus imp, long maxBytes) {
+        ImageStack stack = imp.getStack();
+        if (stack instanceof PrefetchingStack) {
+            return (PrefetchingStack) stack;
+        }
+        if (!stack.isVirtual() || imp.getBitDepth() == 0) {
+            return null;
+        }
+        PrefetchingStack wrapper = new PrefetchingStack(stack, maxBytes);
+        swapStack(imp, wrapper);
+        return wrapper;
+    }
+
+    /**
+     * Puts the original stack of the image back and stops loading, if a prefetching stack is installed.
+     */
+    static void uninstall(ImagePlus imp) {
+        ImageStack stack = imp.getStack();
+        if (!(stack instanceof PrefetchingStack)) {
+            return;
+        }
+        PrefetchingStack wrapper = (PrefetchingStack) stack;
+        wrapper.clear();
+        wrapper.pool.shutdown();
+        swapStack(imp, wrapper.source);
+    }
+
+    /**
+     * Replaces the stack, keeping LUTs, display range and the current position.
+     */
+    private static void swapStack(ImagePlus imp, ImageStack stack) {
+        int c = imp.getC(), z = imp.getZ(), t = imp.getT();
+        if (imp.isComposite()) {
+            CompositeImage composite = (CompositeImage) imp;
+            LUT[] luts = composite.getLuts();
+            int mode = composite.getMode();
+            imp.setStack(stack);
+            composite.setLuts(luts);
+            composite.setMode(mode);
+        } else {
+            double min = imp.getDisplayRangeMin(), max = imp.getDisplayRangeMax();
+            imp.setStack(stack);
+            imp.setDisplayRange(min, max);
+        }
+        imp.setPositionWithoutUpdate(c, z, t);
+    }
+
+    /**
+     * Queues the given stack indices for loading, in priority order. Queued loads that are no
+     * longer wanted are dropped; planes already cached or loading are left alone.
+     */
+    synchronized void prefetch(int[] stackIndices) {
+        Set<Integer> wanted = new HashSet<>();
+        for (int n : stackIndices) {
+            wanted.add(n);
+        }
+        Iterator<Map.Entry<Integer, Future<?>>> it = loading.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Future<?>> entry = it.next();
+            if (!wanted.contains(entry.getKey()) && entry.getValue().cancel(false)) {
+                it.remove();
+            }
+        }
+        // Never queue more than fits, or the last loads would evict the first ones
+        long budget = maxBytes / Math.max(1, planeBytes);
+        int queued = 0;
+        for (int n : stackIndices) {
+            if (queued++ >= budget) {
+                break;
+            }
+            if (n < 1 || n > source.getSize() || planes.containsKey(n) || loading.containsKey(n)) {
+                continue;
+            }
+            final int index = n;
+            loading.put(index, pool.submit(() -> {
+                ImageProcessor ip = null;
+                try {
+                    ip = read(index);
+                } catch (RuntimeException e) {
+                    // Unreadable plane - ImageJ reports it when the plane is actually shown
+                }
+                store(index, ip);
+            }));
+        }
+    }
+
+    private synchronized void store(int n, ImageProcessor ip) {
+        loading.remove(n);
+        if (ip == null || planeBytes > maxBytes) {
+            return;
+        }
+        if (planes.put(n, ip) == null) {
+            cachedBytes += planeBytes;
+        }
+        Iterator<ImageProcessor> it = planes.values().iterator();
+        while (cachedBytes > maxBytes && it.hasNext()) {
+            it.next();
+            it.remove();
+            cachedBytes -= planeBytes;
+        }
+    }
+
+    private ImageProcessor read(int n) {
+        if (parallelReads) {
+            return source.getProcessor(n);
+        }
+        synchronized (readLock) {
+            return source.getProcessor(n);
+        }
+    }
+
+    /**
+     * Drops cached planes and queued loads; the stack keeps working as a pass-through.
+     */
+    synchronized void clear() {
+        for (Future<?> future : loading.values()) {
+            future.cancel(false);
+        }
+        loading.clear();
+        planes.clear();
+        cachedBytes = 0;
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        Future<?> pending;
+        synchronized (this) {
+            ImageProcessor ip = planes.get(n);
+            if (ip != null) {
+                return ip.duplicate();
+            }
+            pending = loading.get(n);
+        }
+        if (pending != null && !pending.isCancelled()) {
+            // Already being read in the background: wait for it instead of reading it twice
+            try {
+                pending.get();
+                synchronized (this) {
+                    ImageProcessor ip = planes.get(n);
+                    if (ip != null) {
+                        return ip.duplicate();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // Fall through to a direct read, which reports the error
+            }
+        }
+        return read(n);
+    }
+
+    @Override
+    public Object getPixels(int n) {
+        ImageProcessor ip = getProcessor(n);
+        return ip != null ? ip.getPixels() : null;
+    }
+
+    @Override
+    public void setPixels(Object pixels, int n) {
+        synchronized (this) {
+            if (planes.remove(n) != null) {
+                cachedBytes -= planeBytes;
+            }
+        }
+        source.setPixels(pixels, n);
+    }
+
+    @Override
+    public void deleteSlice(int n) {
+        clear(); // Indices after n shift down
+        source.deleteSlice(n);
+    }
+
+    @Override
+    public int getSize() {
+        return source.getSize();
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return source.getSliceLabel(n);
+    }
+
+    @Override
+    public int getBitDepth() {
+        return source.getBitDepth();
+    }
+
+    @Override
+    public String getDirectory() {
+        return source instanceof VirtualStack ? ((VirtualStack) source).getDirectory() : null;
+    }
+
+    @Override
+    public String getFileName(int n) {
+        return source instanceof VirtualStack ? ((VirtualStack) source).getFileName(n) : null;
+    }
+}
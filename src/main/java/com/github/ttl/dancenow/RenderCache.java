@@ -0,0 +1,191 @@
+package com.github.ttl.dancenow;
+
+import ij.Prefs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk-backed, content-addressed cache of encoded snapshot and thumbnail bytes.
+ * Keys are hashes of everything that determines the rendered pixels, so a hit can be written out
+ * without reading or encoding the image again. The in-memory index is split into shards, each an
+ * access-ordered map behind its own lock, so parallel workers rarely contend. When the total size
+ * passes the cap, the least recently used entries of each shard are evicted in turn.
+ */
+class RenderCache {
+    private static final int SHARDS = 16;
+    private static final String PREF_MAX_MB = "dancenow.cache.mb";
+    private static RenderCache defaultCache;
+
+    private final File dir;
+    private final long maxBytes;
+    private final Shard[] shards = new Shard[SHARDS];
+    private final AtomicLong totalBytes = new AtomicLong();
+    private int evictShard = 0;
+
+    private static class Shard {
+        final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true); // key -> size
+    }
+
+    RenderCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+        loadIndex();
+    }
+
+    /**
+     * Shared cache in ~/.dancenow/render-cache, capped by the dancenow.cache.mb preference (default 1024 MB).
+     * Prefs.get prefixes the key with a dot, so the line in IJ_Prefs.txt reads ".dancenow.cache.mb=".
+     */
+    static synchronized RenderCache getDefault() {
+        if (defaultCache == null) {
+            File dir = new File(System.getProperty("user.home"), ".dancenow" + File.separator + "render-cache");
+            long maxMB = (long) Prefs.get(PREF_MAX_MB, 1024);
+            defaultCache = new RenderCache(dir, maxMB * 1024 * 1024);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Rebuilds the index from the files on disk, oldest first so LRU order survives restarts.
+     */
+    private void loadIndex() {
+        File[] subDirs = dir.listFiles(File::isDirectory);
+        if (subDirs == null) {
+            return;
+        }
+        List<File> files = new ArrayList<>();
+        for (File subDir : subDirs) {
+            File[] entries = subDir.listFiles((d, name) -> name.endsWith(".bin"));
+            if (entries != null) {
+                for (File entry : entries) {
+                    files.add(entry);
+                }
+            }
+        }
+        files.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            String name = file.getName();
+            String key = name.substring(0, name.length() - 4);
+            Shard shard = shardFor(key);
+            shard.entries.put(key, file.length());
+            totalBytes.addAndGet(file.length());
+        }
+    }
+
+    /**
+     * Returns the cached bytes for the key, or null on a miss.
+     */
+    byte[] get(String key) {
+        Shard shard = shardFor(key);
+        synchronized (shard) {
+            if (shard.entries.get(key) == null) {
+                return null;
+            }
+        }
+        File file = fileFor(key);
+        try {
+            byte[] data = Files.readAllBytes(file.toPath());
+            file.setLastModified(System.currentTimeMillis());
+            return data;
+        } catch (IOException e) {
+            // Evicted or deleted underneath us - treat as a miss
+            forget(key);
+            return null;
+        }
+    }
+
+    /**
+     * Stores bytes under the key. Failures are ignored: the cache is an optimization only.
+     */
+    void put(String key, byte[] data) {
+        File file = fileFor(key);
+        try {
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                return;
+            }
+            // Write to a temp file and rename, so readers never see a partial entry
+            File temp = File.createTempFile(key, ".tmp", parent);
+            Files.write(temp.toPath(), data);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            return;
+        }
+
+        Shard shard = shardFor(key);
+        synchronized (shard) {
+            Long previous = shard.entries.put(key, (long) data.length);
+            totalBytes.addAndGet(data.length - (previous != null ? previous : 0));
+        }
+        if (totalBytes.get() > maxBytes) {
+            evict();
+        }
+    }
+
+    private void forget(String key) {
+        Shard shard = shardFor(key);
+        synchronized (shard) {
+            Long size = shard.entries.remove(key);
+            if (size != null) {
+                totalBytes.addAndGet(-size);
+            }
+        }
+    }
+
+    /**
+     * Drops least recently used entries, one per shard in turn, until 90% of the cap is reached.
+     */
+    private void evict() {
+        long target = maxBytes - maxBytes / 10;
+        int emptyShards = 0;
+        while (totalBytes.get() > target && emptyShards < SHARDS) {
+            Shard shard;
+            synchronized (this) {
+                shard = shards[evictShard];
+                evictShard = (evictShard + 1) % SHARDS;
+            }
+            String victim = null;
+            synchronized (shard) {
+                Iterator<Map.Entry<String, Long>> it = shard.entries.entrySet().iterator();
+                if (it.hasNext()) {
+                    Map.Entry<String, Long> eldest = it.next();
+                    victim = eldest.getKey();
+                    totalBytes.addAndGet(-eldest.getValue());
+                    it.remove();
+                }
+            }
+            if (victim == null) {
+                emptyShards++;
+            } else {
+                emptyShards = 0;
+                fileFor(victim).delete();
+            }
+        }
+    }
+
+    long size() {
+        return totalBytes.get();
+    }
+
+    private Shard shardFor(String key) {
+        return shards[(key.hashCode() & 0x7fffffff) % SHARDS];
+    }
+
+    private File fileFor(String key) {
+        // Two-character subdirectories keep directory listings small
+        return new File(new File(dir, key.substring(0, 2)), key + ".bin");
+    }
+}
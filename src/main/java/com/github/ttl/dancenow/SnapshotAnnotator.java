@@ -0,0 +1,108 @@
+package com.github.ttl.dancenow;
+
+import ij.process.ColorProcessor;
+
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * Draws snapshot annotations (center cross and "#index: note" text) directly into the
+ * pixel array of an RGB snapshot, replacing the Overlay + flatten() round trip.
+ * Font, render context and crosshair sprite are created once and shared by all snapshots.
+ */
+final class SnapshotAnnotator {
+
+    static final int CROSS_COLOR = 0xFF00FF;       // Magenta, same as the live crosshair
+    static final int CROSS_ARM = 5;                // Arm length in pixels
+    static final int TEXT_MARGIN = 5;              // Top-left padding of the annotation text
+
+    private static final Font TEXT_FONT = new Font("Arial", Font.BOLD, 12);
+    private static final FontRenderContext TEXT_FRC = new FontRenderContext(null, true, true);
+    private static final float TEXT_ASCENT = TEXT_FONT.getLineMetrics("#", TEXT_FRC).getAscent();
+    private static final DirectColorModel RGB_MODEL = new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF);
+
+    // Crosshair sprite as (dx, dy) pairs relative to the center, shared center pixel drawn once
+    private static final int[] CROSS_SPRITE = createCrossSprite();
+
+    private SnapshotAnnotator() {
+    }
+
+    private static int[] createCrossSprite() {
+        int[] sprite = new int[(4 * CROSS_ARM + 1) * 2];
+        int n = 0;
+        for (int d = -CROSS_ARM; d <= CROSS_ARM; d++) {
+            sprite[n++] = d;
+            sprite[n++] = 0;
+        }
+        for (int d = -CROSS_ARM; d <= CROSS_ARM; d++) {
+            if (d == 0) continue;
+            sprite[n++] = 0;
+            sprite[n++] = d;
+        }
+        return sprite;
+    }
+
+    /**
+     * Builds the annotation label used on snapshots, e.g. "#12: nucleus".
+     */
+    static String label(int index, String note) {
+        if (note != null && !note.trim().isEmpty()) {
+            return "#" + index + ": " + note;
+        }
+        return "#" + index;
+    }
+
+    /**
+     * Stamps the magenta crosshair sprite at the center of the image, clipped to its bounds.
+     */
+    static void drawCross(ColorProcessor cp) {
+        int width = cp.getWidth();
+        int height = cp.getHeight();
+        int[] pixels = (int[]) cp.getPixels();
+        int centerX = width / 2;
+        int centerY = height / 2;
+
+        for (int i = 0; i < CROSS_SPRITE.length; i += 2) {
+            int px = centerX + CROSS_SPRITE[i];
+            int py = centerY + CROSS_SPRITE[i + 1];
+            if (px >= 0 && px < width && py >= 0 && py < height) {
+                pixels[py * width + px] = CROSS_COLOR;
+            }
+        }
+    }
+
+    /**
+     * Renders yellow, bold, antialiased text in the top-left corner of the image.
+     * The Graphics2D draws into a raster that shares the processor's pixel array, so no copy is made.
+     */
+    static void drawText(ColorProcessor cp, String text) {
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        int width = cp.getWidth();
+        int height = cp.getHeight();
+        int[] pixels = (int[]) cp.getPixels();
+
+        DataBufferInt buffer = new DataBufferInt(pixels, pixels.length);
+        WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width,
+            RGB_MODEL.getMasks(), null);
+        BufferedImage image = new BufferedImage(RGB_MODEL, raster, false, null);
+
+        GlyphVector glyphs = TEXT_FONT.createGlyphVector(TEXT_FRC, text);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+            g.setColor(Color.YELLOW);
+            g.drawGlyphVector(glyphs, TEXT_MARGIN, TEXT_MARGIN + TEXT_ASCENT);
+        } finally {
+            g.dispose();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.github.ttl.dancenow;
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * PNG encoding of snapshots to bytes, so encoding can run on worker threads and the bytes can be
+ * cached or streamed into an archive.
+ */
+final class SnapshotEncoder {
+
+    private SnapshotEncoder() {
+    }
+
+    static byte[] png(ImageProcessor ip) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        ImageIO.write(toBufferedImage(ip), "png", out);
+        return out.toByteArray();
+    }
+
+    private static BufferedImage toBufferedImage(ImageProcessor ip) {
+        // Keep 16-bit grayscale snapshots at full depth, like ImageJ's PNG writer
+        if (ip instanceof ShortProcessor) {
+            return ((ShortProcessor) ip).get16BitBufferedImage();
+        }
+        return ip.getBufferedImage();
+    }
+}
@@ -0,0 +1,519 @@
+package com.github.ttl.dancenow;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.CompositeImage;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.io.FileInfo;
+import ij.process.LUT;
+
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Renders snapshots straight from the image stack, without moving the displayed image to each
+ * position. Channel LUTs and display ranges are captured once when the engine is created, so
+ * {@link #render} only reads pixels and is safe to call from several threads at once.
+ * Virtual stacks backed by an uncompressed TIFF are cropped straight from the file, and those
+ * backed by an ImageJ2 dataset (cell-cached ImgLib2 image) through ImgLib2 views.
+ */
+class SnapshotEngine implements Closeable {
+    private static final int PARALLEL_PIXELS = 512 * 512;  // Composite larger crops on all cores
+
+    private final ImagePlus imp;
+    private final ImageStack stack;
+    private final SnapshotSettings settings;
+    private final int imageWidth, imageHeight;
+    private final int nChannels, nSlices, nFrames;
+    private final boolean composite;
+    private final int[] selectedChannels;   // 1-based channels to render
+    private final LUT[] luts;               // Per selected channel, carries min/max display range
+    private final int[][] rgbTables;        // Per selected channel, 256 packed RGB values
+    private final String renderSignature;   // Image identity, channels, LUTs and flags for cache keys
+    private final boolean fileIdentity;     // Signature names an unmodified file, safe to cache on disk
+    private final CropReader reader;        // Reads only the crop rectangle of a plane
+
+    SnapshotEngine(ImagePlus imp, SnapshotSettings settings) {
+        this.imp = imp;
+        this.stack = imp.getStack();
+        this.settings = settings;
+        this.imageWidth = imp.getWidth();
+        this.imageHeight = imp.getHeight();
+        this.nChannels = imp.getNChannels();
+        this.nSlices = imp.getNSlices();
+        this.nFrames = imp.getNFrames();
+        this.composite = imp.isComposite() && nChannels > 1;
+
+        int count = 0;
+        for (int c = 1; c <= nChannels; c++) {
+            if (settings.isChannelSelected(c)) count++;
+        }
+        if (!composite || count == 0) {
+            // Single plane rendering: use the first selected channel (or the first one)
+            int channel = 1;
+            for (int c = 1; c <= nChannels; c++) {
+                if (settings.isChannelSelected(c)) {
+                    channel = c;
+                    break;
+                }
+            }
+            selectedChannels = new int[]{channel};
+            LUT lut = imp.getProcessor().getLut();
+            if (lut != null) {
+                lut = (LUT) lut.clone();
+                lut.min = imp.getDisplayRangeMin();
+                lut.max = imp.getDisplayRangeMax();
+            }
+            luts = new LUT[]{lut};
+        } else {
+            CompositeImage comp = (CompositeImage) imp;
+            selectedChannels = new int[count];
+            luts = new LUT[count];
+            int n = 0;
+            for (int c = 1; c <= nChannels; c++) {
+                if (settings.isChannelSelected(c)) {
+                    selectedChannels[n] = c;
+                    luts[n] = comp.getChannelLut(c);
+                    n++;
+                }
+            }
+        }
+
+        rgbTables = new int[luts.length][];
+        for (int i = 0; i < luts.length; i++) {
+            rgbTables[i] = rgbTable(luts[i]);
+        }
+        fileIdentity = imageIdentity() != null;
+        renderSignature = renderSignature();
+
+        CropReader direct = TiffCropReader.open(imp);
+        if (direct == null) {
+            direct = openImgLib2Reader(imp);
+        }
+        reader = direct != null ? direct : new StackCropReader(stack);
+    }
+
+    private static CropReader openImgLib2Reader(ImagePlus imp) {
+        try {
+            return ImgLib2CropReader.open(imp);
+        } catch (LinkageError | RuntimeException e) {
+            // Plain ImageJ 1.x without the ImageJ2 legacy layer
+            return null;
+        }
+    }
+
+    /**
+     * Fallback crop reader: decodes the whole plane through the stack and crops it in memory.
+     * Several crops of one plane share a single decode.
+     */
+    private static class StackCropReader implements CropReader {
+        private final ImageStack stack;
+
+        StackCropReader(ImageStack stack) {
+            this.stack = stack;
+        }
+
+        @Override
+        public ImageProcessor read(int stackIndex, Rectangle rect) {
+            return read(stackIndex, new Rectangle[]{rect})[0];
+        }
+
+        @Override
+        public ImageProcessor[] read(int stackIndex, Rectangle[] rects) {
+            ImageProcessor plane = stack.getProcessor(stackIndex);
+            ImageProcessor[] crops = new ImageProcessor[rects.length];
+            for (int i = 0; i < rects.length; i++) {
+                plane.setRoi(rects[i]);
+                crops[i] = plane.crop();
+            }
+            return crops;
+        }
+    }
+
+    /**
+     * Identifies the image content by the file it was opened from (path, size, modification time),
+     * or returns null when there is no such file or the pixels were changed since it was opened.
+     */
+    private String imageIdentity() {
+        FileInfo fi = imp.getOriginalFileInfo();
+        if (fi != null && fi.directory != null && fi.fileName != null && !imp.changes) {
+            File file = new File(fi.directory, fi.fileName);
+            if (file.isFile()) {
+                return "file:" + file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * True when cache keys identify the pixels across sessions, i.e. the image is an unmodified file
+     * on disk. Image IDs repeat from one ImageJ session to the next and do not change when pixels are
+     * edited, so other images must not use the persistent render cache.
+     */
+    boolean hasFileIdentity() {
+        return fileIdentity;
+    }
+
+    private String renderSignature() {
+        StringBuilder sb = new StringBuilder("v1;");
+        String identity = imageIdentity();
+        sb.append(identity != null ? identity : "session:" + imp.getID() + ":" + imp.getTitle()).append(';');
+        sb.append(imageWidth).append('x').append(imageHeight).append('x').append(nChannels)
+          .append('x').append(nSlices).append('x').append(nFrames).append(';');
+        sb.append(composite ? "composite;" : "plane;");
+        for (int i = 0; i < selectedChannels.length; i++) {
+            sb.append('c').append(selectedChannels[i]);
+            if (luts[i] != null) {
+                sb.append('[').append(luts[i].min).append(',').append(luts[i].max).append(',')
+                  .append(Arrays.hashCode(rgbTables[i])).append(']');
+            }
+        }
+        sb.append(";cross=").append(settings.includeCross);
+        sb.append(";reverse=").append(settings.horizontalReverse);
+        sb.append(";projection=").append(settings.projectionKey());
+        return sb.toString();
+    }
+
+    /**
+     * Image identity, channels, LUTs, display ranges and flags that determine every rendered snapshot.
+     */
+    String getRenderSignature() {
+        return renderSignature;
+    }
+
+    /**
+     * Content hash of everything that determines the encoded snapshot for this position:
+     * image identity, plane, crop rectangle, channel set, LUTs/display ranges and annotations.
+     */
+    String cacheKey(Position pos, int index) {
+        Rectangle rect = cropRect(pos);
+        StringBuilder sb = new StringBuilder(renderSignature);
+        sb.append(";z=").append(clampZ(pos.z)).append(";t=").append(clampT(pos.t));
+        sb.append(";rect=").append(rect.x).append(',').append(rect.y).append(',')
+          .append(rect.width).append(',').append(rect.height);
+        if (settings.includeAnnotation) {
+            sb.append(";label=").append(SnapshotAnnotator.label(index, pos.note));
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    ImagePlus getImage() {
+        return imp;
+    }
+
+    SnapshotSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Crop rectangle centered on the position and clamped to the image bounds.
+     */
+    Rectangle cropRect(Position pos) {
+        return cropRect(pos, clampT(pos.t));
+    }
+
+    /**
+     * Crop rectangle for the position in frame t: centered on the position shifted by the drift
+     * of that frame, if any, and clamped to the image bounds.
+     */
+    Rectangle cropRect(Position pos, int t) {
+        int width = settings.width;
+        int height = settings.height;
+        int centerX = pos.x + (settings.drift != null ? settings.drift.dx(t) : 0);
+        int centerY = pos.y + (settings.drift != null ? settings.drift.dy(t) : 0);
+
+        // Calculate ROI bounds centered on position
+        int x = centerX - width / 2;
+        int y = centerY - height / 2;
+
+        // Ensure the ROI fits within image bounds
+        // First, clamp the top-left corner
+        x = Math.max(0, x);
+        y = Math.max(0, y);
+
+        // Then, adjust width and height if they exceed image bounds
+        int actualWidth = Math.min(width, imageWidth - x);
+        int actualHeight = Math.min(height, imageHeight - y);
+
+        // If the requested size is larger than the image, adjust to fit
+        if (actualWidth <= 0 || actualHeight <= 0) {
+            actualWidth = Math.min(width, imageWidth);
+            actualHeight = Math.min(height, imageHeight);
+            x = Math.max(0, centerX - actualWidth / 2);
+            y = Math.max(0, centerY - actualHeight / 2);
+            x = Math.min(x, imageWidth - actualWidth);
+            y = Math.min(y, imageHeight - actualHeight);
+        }
+        return new Rectangle(x, y, actualWidth, actualHeight);
+    }
+
+    /**
+     * Drift of frame t from the settings, 0 without a drift table. Tools that read whole planes
+     * subtract it to store positions in frame 1 coordinates.
+     */
+    int driftX(int t) {
+        return settings.drift != null ? settings.drift.dx(t) : 0;
+    }
+
+    int driftY(int t) {
+        return settings.drift != null ? settings.drift.dy(t) : 0;
+    }
+
+    /**
+     * Page size used by container outputs: the requested size, limited to the image size.
+     */
+    int pageWidth() {
+        return Math.min(settings.width, imageWidth);
+    }
+
+    int pageHeight() {
+        return Math.min(settings.height, imageHeight);
+    }
+
+    int clampZ(int z) {
+        return Math.max(1, Math.min(z, nSlices));
+    }
+
+    int clampT(int t) {
+        return Math.max(1, Math.min(t, nFrames));
+    }
+
+    /**
+     * Renders the snapshot for one position: crop, channel composite, flip and annotations.
+     */
+    ImagePlus render(Position pos, int index) throws IOException {
+        Rectangle rect = cropRect(pos);
+        int z = clampZ(pos.z);
+        int t = clampT(pos.t);
+
+        ImageProcessor ip = composite ? renderComposite(rect, z, t) : readPlane(selectedChannels[0], z, t, rect);
+
+        // Apply horizontal flip first if requested so text remains readable (not mirrored)
+        if (settings.horizontalReverse) {
+            ip.flipHorizontal();
+        }
+
+        // Draw cross and/or annotation text straight into the RGB pixels
+        if (settings.includeCross || settings.includeAnnotation) {
+            ColorProcessor cp = (ip instanceof ColorProcessor) ? (ColorProcessor) ip : (ColorProcessor) ip.convertToRGB();
+            if (settings.includeCross) {
+                SnapshotAnnotator.drawCross(cp);
+            }
+            if (settings.includeAnnotation) {
+                SnapshotAnnotator.drawText(cp, SnapshotAnnotator.label(index, pos.note));
+            }
+            ip = cp;
+        }
+        return new ImagePlus("snapshot", ip);
+    }
+
+    /**
+     * 1-based channels that make up a rendered snapshot, in compositing order.
+     */
+    int[] getSelectedChannels() {
+        return selectedChannels.clone();
+    }
+
+    int getNChannels() {
+        return nChannels;
+    }
+
+    int getNFrames() {
+        return nFrames;
+    }
+
+    /**
+     * Plain crops of one channel plane (no projection) for several rectangles, read in one go.
+     */
+    ImageProcessor[] readCrops(int channel, int z, int t, Rectangle[] rects) throws IOException {
+        return reader.read(imp.getStackIndex(channel, z, t), rects);
+    }
+
+    /**
+     * Colors one crop per selected channel (same rectangle, see {@link #getSelectedChannels}) the
+     * way {@link #render} does, without flip or annotations.
+     */
+    ColorProcessor toRGB(ImageProcessor[] channelCrops) {
+        ImageProcessor first = channelCrops[0];
+        if (!composite) {
+            if (first instanceof ColorProcessor) {
+                return (ColorProcessor) first;
+            }
+            LUT lut = luts[0];
+            if (lut != null) {
+                first.setLut(lut);
+                first.setMinAndMax(lut.min, lut.max);
+            }
+            return (ColorProcessor) first.convertToRGB();
+        }
+        int[] rgb = new int[first.getWidth() * first.getHeight()];
+        for (int i = 0; i < channelCrops.length; i++) {
+            addChannel(rgb, first.getWidth(), channelCrops[i], luts[i].min, luts[i].max, rgbTables[i]);
+        }
+        return new ColorProcessor(first.getWidth(), first.getHeight(), rgb);
+    }
+
+    /**
+     * Reads the crop of one channel plane, carrying over the LUT and display range of the image.
+     */
+    ImageProcessor readPlane(int channel, int z, int t, Rectangle rect) throws IOException {
+        ImageProcessor crop = readCrop(channel, z, t, rect);
+        LUT lut = luts[0];
+        if (!(crop instanceof ColorProcessor) && lut != null) {
+            double scale = rangeScale(z, t);
+            crop.setLut(lut);
+            crop.setMinAndMax(lut.min * scale, lut.max * scale);
+        }
+        return crop;
+    }
+
+    /**
+     * Crop of one channel at (z,t), or its projection over the configured Z or T range. Slices are
+     * streamed through a single accumulator, so only the crop window is ever read or held. In a T
+     * projection each frame's window follows that frame's drift.
+     */
+    private ImageProcessor readCrop(int channel, int z, int t, Rectangle rect) throws IOException {
+        if (settings.projection == SnapshotSettings.Projection.NONE) {
+            return reader.read(imp.getStackIndex(channel, z, t), rect);
+        }
+        int[] range = projectionRange(z, t);
+        boolean max = settings.projection == SnapshotSettings.Projection.MAX;
+        float[] accumulator = new float[rect.width * rect.height];
+        if (max) {
+            Arrays.fill(accumulator, Float.NEGATIVE_INFINITY);
+        }
+        ImageProcessor slice = null;
+        for (int s = range[0]; s <= range[1]; s++) {
+            int stackIndex = settings.projectTime ? imp.getStackIndex(channel, z, s) : imp.getStackIndex(channel, s, t);
+            slice = reader.read(stackIndex, settings.projectTime ? driftedRect(rect, t, s) : rect);
+            if (slice instanceof ColorProcessor) {
+                return slice; // RGB planes are not projected, as in ZProjector's per-channel modes
+            }
+            for (int i = 0; i < accumulator.length; i++) {
+                float value = slice.getf(i);
+                accumulator[i] = max ? Math.max(accumulator[i], value) : accumulator[i] + value;
+            }
+        }
+        if (settings.projection == SnapshotSettings.Projection.MEAN) {
+            int count = range[1] - range[0] + 1;
+            for (int i = 0; i < accumulator.length; i++) {
+                accumulator[i] /= count;
+            }
+        }
+        FloatProcessor projection = new FloatProcessor(rect.width, rect.height, accumulator);
+        if (max && slice.getBitDepth() != 32) {
+            // Max of integer data keeps the pixel type, like ZProjector
+            return slice.getBitDepth() == 8 ? projection.convertToByteProcessor(false) : projection.convertToShortProcessor(false);
+        }
+        return projection;
+    }
+
+    /**
+     * The crop of frame t moved by the drift between frames t and s. The size is kept; near the
+     * image border the window is pushed back inside, as cropRect does.
+     */
+    private Rectangle driftedRect(Rectangle rect, int t, int s) {
+        if (settings.drift == null || s == t) {
+            return rect;
+        }
+        int x = rect.x + settings.drift.dx(s) - settings.drift.dx(t);
+        int y = rect.y + settings.drift.dy(s) - settings.drift.dy(t);
+        x = Math.max(0, Math.min(x, imageWidth - rect.width));
+        y = Math.max(0, Math.min(y, imageHeight - rect.height));
+        return new Rectangle(x, y, rect.width, rect.height);
+    }
+
+    /**
+     * First and last slice (or frame) of the projection around the position, clamped to the image.
+     */
+    private int[] projectionRange(int z, int t) {
+        int center = settings.projectTime ? t : z;
+        int limit = settings.projectTime ? nFrames : nSlices;
+        return new int[]{Math.max(1, center - settings.projectionRange), Math.min(limit, center + settings.projectionRange)};
+    }
+
+    /**
+     * Sum projections add up the planes, so the display range is widened by the number of planes.
+     */
+    private double rangeScale(int z, int t) {
+        if (settings.projection != SnapshotSettings.Projection.SUM) {
+            return 1.0;
+        }
+        int[] range = projectionRange(z, t);
+        return range[1] - range[0] + 1;
+    }
+
+    /**
+     * Additive composite of the selected channels, equivalent to CompositeImage COMPOSITE mode.
+     */
+    private ColorProcessor renderComposite(Rectangle rect, int z, int t) throws IOException {
+        int[] rgb = new int[rect.width * rect.height];
+        for (int i = 0; i < selectedChannels.length; i++) {
+            ImageProcessor crop = readCrop(selectedChannels[i], z, t, rect);
+            double scale = rangeScale(z, t);
+            addChannel(rgb, rect.width, crop, luts[i].min * scale, luts[i].max * scale, rgbTables[i]);
+        }
+        return new ColorProcessor(rect.width, rect.height, rgb);
+    }
+
+    private static void addChannel(int[] rgb, int width, ImageProcessor crop, double min, double max, int[] table) {
+        boolean isFloat = crop.getBitDepth() == 32;
+        double scale = isFloat ? 255.0 / Math.max(max - min, Double.MIN_VALUE) : 256.0 / (max - min + 1);
+
+        // Large crops (e.g. whole planes of out-of-core data) are converted on all cores, row by row
+        IntStream rows = IntStream.range(0, rgb.length / width);
+        if (rgb.length >= PARALLEL_PIXELS) {
+            rows = rows.parallel();
+        }
+        rows.forEach(row -> addRange(rgb, row * width, (row + 1) * width, crop, min, scale, table));
+    }
+
+    private static void addRange(int[] rgb, int from, int to, ImageProcessor crop, double min, double scale, int[] table) {
+        for (int n = from; n < to; n++) {
+            int value = (int) ((crop.getf(n) - min) * scale + 0.5);
+            if (value < 0) value = 0;
+            if (value > 255) value = 255;
+            int add = table[value];
+            int sum = rgb[n];
+            int r = Math.min(255, ((sum >> 16) & 0xff) + ((add >> 16) & 0xff));
+            int g = Math.min(255, ((sum >> 8) & 0xff) + ((add >> 8) & 0xff));
+            int b = Math.min(255, (sum & 0xff) + (add & 0xff));
+            rgb[n] = (r << 16) | (g << 8) | b;
+        }
+    }
+
+    private static int[] rgbTable(LUT lut) {
+        int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            table[i] = lut != null ? lut.getRGB(i) & 0xffffff : (i << 16) | (i << 8) | i;
+        }
+        return table;
+    }
+
+    /**
+     * Releases the file handle of a direct TIFF reader, if one is in use.
+     */
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
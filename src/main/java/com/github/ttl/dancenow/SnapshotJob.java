@@ -0,0 +1,263 @@
+package com.github.ttl.dancenow;
+
+import ij.ImagePlus;
+import ij.Prefs;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs a snapshot batch over a list of positions. Snapshots are rendered in parallel on all
+ * ImageJ worker threads and handed to the sink strictly in position order, with a bounded number
+ * in flight so memory stays flat. Used by the Snapshot dialog and by the headless batch command.
+ */
+class SnapshotJob {
+
+    interface ProgressListener {
+        void progress(int completed, int total);
+    }
+
+    /**
+     * One finished position: encoded PNG bytes for sinks that take them, otherwise the rendered image.
+     */
+    private static class Rendered {
+        final ImagePlus image;
+        final byte[] png;
+
+        Rendered(ImagePlus image, byte[] png) {
+            this.image = image;
+            this.png = png;
+        }
+    }
+
+    private final SnapshotEngine engine;
+    private final List<Position> positions;
+    private final File saveDir;
+    private final int threads;
+    private RenderCache cache;
+    private int[] visitOrder;           // Permutation of positions to render in, null for list order
+    private int writtenCount = 0;
+    private int skippedCount = 0;
+    private int cacheHits = 0;
+
+    SnapshotJob(SnapshotEngine engine, List<Position> positions, File saveDir) {
+        this.engine = engine;
+        this.positions = positions;
+        this.saveDir = saveDir;
+        this.threads = Math.max(1, Prefs.getThreads());
+    }
+
+    int getWrittenCount() {
+        return writtenCount;
+    }
+
+    int getSkippedCount() {
+        return skippedCount;
+    }
+
+    synchronized int getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Reuses encoded PNG bytes across runs for PNG and ZIP output. Other outputs ignore the cache,
+     * and so do images that are not an unmodified file on disk.
+     */
+    void setRenderCache(RenderCache cache) {
+        this.cache = engine.hasFileIdentity() ? cache : null;
+    }
+
+    /**
+     * Renders positions in the given order (indices into the list, e.g. from {@link VisitOrder}).
+     * Snapshots keep their list-based numbers; container outputs get pages in visiting order.
+     */
+    void setVisitOrder(int[] visitOrder) {
+        this.visitOrder = visitOrder;
+    }
+
+    /**
+     * Renders and writes all positions. Returns false if the job was cancelled before finishing.
+     */
+    boolean run(ProgressListener listener, BooleanSupplier cancelled) throws IOException {
+        SnapshotSettings settings = engine.getSettings();
+        SnapshotSink sink = createSink(settings);
+
+        // PNG output is one file per position, so a checkpoint manifest lets a re-run skip finished ones
+        SnapshotManifest manifest = null;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        int total = positions.size();
+        ArrayDeque<Future<Rendered>> inFlight = new ArrayDeque<>();
+        try {
+            if (sink instanceof PngDirectorySink) {
+                // The render signature adds LUTs and display ranges, so a contrast change starts afresh
+                manifest = SnapshotManifest.open(saveDir,
+                    settings.key(engine.getImage()) + ";render=" + engine.getRenderSignature(), positions);
+            }
+
+            boolean encoded = sink instanceof EncodedSnapshotSink;
+            ArrayDeque<Integer> inFlightIndex = new ArrayDeque<>();
+            int maxInFlight = threads * 2;
+            int next = 0;
+            int completed = 0;
+            while (completed < total) {
+                if (cancelled.getAsBoolean()) {
+                    return false;
+                }
+
+                // Keep the workers busy, but never more than a couple of snapshots per thread in memory
+                while (next < total && inFlight.size() < maxInFlight) {
+                    int listIndex = visitOrder != null ? visitOrder[next] : next;
+                    final int index = listIndex + 1;
+                    final Position pos = positions.get(listIndex);
+                    next++;
+                    inFlightIndex.add(index);
+                    if (manifest != null && manifest.isCompleted(index)
+                            && new File(saveDir, PngDirectorySink.fileName(index, settings.horizontalReverse)).exists()) {
+                        inFlight.add(CompletableFuture.completedFuture(null));
+                    } else {
+                        inFlight.add(pool.submit(() -> encoded
+                            ? encode(pos, index)
+                            : new Rendered(engine.render(pos, index), null)));
+                    }
+                }
+
+                Rendered snapshot = await(inFlight.poll());
+                int index = inFlightIndex.poll();
+                completed++;
+                if (snapshot == null) {
+                    skippedCount++;
+                } else {
+                    if (snapshot.png != null) {
+                        ((EncodedSnapshotSink) sink).writeEncoded(index, positions.get(index - 1), snapshot.png);
+                    } else {
+                        sink.write(index, positions.get(index - 1), snapshot.image);
+                    }
+                    writtenCount++;
+                    if (manifest != null) {
+                        manifest.markCompleted(index);
+                    }
+                }
+                listener.progress(completed, total);
+            }
+
+            // Keep positions.csv next to the snapshots, inside the archive for ZIP output
+            if (sink instanceof ZipArchiveSink) {
+                ((ZipArchiveSink) sink).writeEntry("positions.csv",
+                    positionsCSV(positions).getBytes(StandardCharsets.UTF_8), true);
+            } else {
+                try (FileWriter writer = new FileWriter(new File(saveDir, "positions.csv"))) {
+                    writer.write(positionsCSV(positions));
+                }
+            }
+            return true;
+        } finally {
+            // No shutdownNow(): interrupting a worker mid-read would close shared file channels.
+            // On cancel or failure, drop the queued snapshots and let running ones finish before
+            // the sink and the engine's readers are closed under them.
+            for (Future<Rendered> future : inFlight) {
+                future.cancel(false);
+            }
+            shutdownAndWait(pool);
+            sink.close();
+            engine.close();
+            if (manifest != null) {
+                manifest.close();
+            }
+        }
+    }
+
+    /**
+     * Worker side of encoded output: cached bytes when the content key is known, else render and encode.
+     */
+    private Rendered encode(Position pos, int index) throws IOException {
+        if (cache == null) {
+            return new Rendered(null, SnapshotEncoder.png(engine.render(pos, index).getProcessor()));
+        }
+        String key = engine.cacheKey(pos, index);
+        byte[] png = cache.get(key);
+        if (png != null) {
+            synchronized (this) {
+                cacheHits++;
+            }
+            return new Rendered(null, png);
+        }
+        png = SnapshotEncoder.png(engine.render(pos, index).getProcessor());
+        cache.put(key, png);
+        return new Rendered(null, png);
+    }
+
+    private SnapshotSink createSink(SnapshotSettings settings) throws IOException {
+        switch (settings.output) {
+            case TIFF:
+                return new TiffStackSink(saveDir, settings.horizontalReverse, engine.pageWidth(), engine.pageHeight());
+            case MONTAGE:
+                return new MontageSink(saveDir, settings.horizontalReverse, settings.montageColumns,
+                                       settings.montageRows, engine.pageWidth(), engine.pageHeight());
+            case ZIP:
+                return new ZipArchiveSink(saveDir, settings.horizontalReverse);
+            case STRIP:
+            case KYMOGRAPH:
+                throw new IllegalArgumentException(settings.output + " are written by TimeStripJob");
+            default:
+                return new PngDirectorySink(saveDir, settings.horizontalReverse);
+        }
+    }
+
+    private static Rendered await(Future<Rendered> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Snapshot interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Snapshot failed: " + cause, cause);
+        }
+    }
+
+    /**
+     * Shuts the pool down and waits for the running tasks to end, without interrupting them: an
+     * interrupted read would close file channels the engine shares. Callers cancel queued tasks
+     * first, and close the engine only after this returns.
+     */
+    static void shutdownAndWait(ExecutorService pool) {
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                // A running render always ends; wait for it rather than close its reader
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static String positionsCSV(List<Position> positions) {
+        StringBuilder csv = new StringBuilder("X,Y,Z,T,Note\n");
+        for (Position pos : positions) {
+            if (pos != null) {
+                // Refined positions keep their sub-pixel X,Y, as in the CSV export
+                String xy = pos.hasSubpixel()
+                    ? String.format(Locale.ROOT, "%.3f,%.3f", pos.subX, pos.subY)
+                    : pos.x + "," + pos.y;
+                csv.append(String.format("%s,%d,%d,%s\n", xy, pos.z, pos.t,
+                    pos.note != null ? pos.note : ""));
+            }
+        }
+        return csv.toString();
+    }
+}
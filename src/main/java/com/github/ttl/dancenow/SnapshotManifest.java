@@ -0,0 +1,109 @@
+package com.github.ttl.dancenow;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Checkpoint file kept in the snapshot output directory. It records the snapshot settings, a hash
+ * of the position list and, appended line by line, every snapshot index that has been written.
+ * A re-run with identical settings and positions picks up the completed indices and skips them.
+ */
+class SnapshotManifest implements Closeable {
+    static final String FILE_NAME = "snapshot_manifest.txt";
+
+    private static final String HEADER = "# DanceNow snapshot manifest";
+    private static final String SETTINGS_KEY = "settings=";
+    private static final String POSITIONS_KEY = "positions=";
+    private static final String DONE_KEY = "done=";
+
+    private final BitSet completed = new BitSet();
+    private final BufferedWriter writer;
+
+    private SnapshotManifest(File file, String settings, String positionsHash) throws IOException {
+        boolean matches = file.exists() && readMatching(file, settings, positionsHash);
+        if (matches) {
+            writer = new BufferedWriter(new FileWriter(file, true));
+        } else {
+            completed.clear();
+            writer = new BufferedWriter(new FileWriter(file, false));
+            writer.write(HEADER + "\n");
+            writer.write(SETTINGS_KEY + settings + "\n");
+            writer.write(POSITIONS_KEY + positionsHash + "\n");
+            writer.flush();
+        }
+    }
+
+    /**
+     * Opens the manifest in the given directory, continuing it if it was written for the same
+     * settings and positions, or starting a fresh one otherwise.
+     */
+    static SnapshotManifest open(File saveDir, String settings, List<Position> positions) throws IOException {
+        return new SnapshotManifest(new File(saveDir, FILE_NAME), settings, hashPositions(positions));
+    }
+
+    private boolean readMatching(File file, String settings, String positionsHash) throws IOException {
+        boolean settingsMatch = false;
+        boolean positionsMatch = false;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(SETTINGS_KEY)) {
+                    settingsMatch = line.substring(SETTINGS_KEY.length()).equals(settings);
+                } else if (line.startsWith(POSITIONS_KEY)) {
+                    positionsMatch = line.substring(POSITIONS_KEY.length()).equals(positionsHash);
+                } else if (line.startsWith(DONE_KEY)) {
+                    try {
+                        completed.set(Integer.parseInt(line.substring(DONE_KEY.length()).trim()));
+                    } catch (NumberFormatException e) {
+                        // Line cut short by a crash - that snapshot is simply redone
+                    }
+                }
+            }
+        }
+        return settingsMatch && positionsMatch;
+    }
+
+    static String hashPositions(List<Position> positions) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Position pos : positions) {
+                digest.update((pos.toStringWithNote() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    boolean isCompleted(int index) {
+        return completed.get(index);
+    }
+
+    /**
+     * Records a written snapshot. Flushed immediately so a crash loses at most the snapshot in flight.
+     */
+    synchronized void markCompleted(int index) throws IOException {
+        completed.set(index);
+        writer.write(DONE_KEY + index + "\n");
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,98 @@
+package com.github.ttl.dancenow;
+
+import ij.ImagePlus;
+
+/**
+ * Snapshot options shared by the Snapshot dialog and the headless batch command
+ */
+class SnapshotSettings {
+
+    enum Output {
+        PNG("PNG files"),
+        TIFF("Multi-page TIFF"),
+        MONTAGE("Montage sheets"),
+        ZIP("ZIP archive"),
+        STRIP("Time strips"),
+        KYMOGRAPH("Kymographs");
+
+        final String label;
+
+        Output(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+
+        /**
+         * Outputs built by {@link TimeStripJob} across all frames rather than one snapshot per position.
+         */
+        boolean isTimeSeries() {
+            return this == STRIP || this == KYMOGRAPH;
+        }
+    }
+
+    enum Projection {
+        NONE("None"),
+        MAX("Max intensity"),
+        MEAN("Mean intensity"),
+        SUM("Sum");
+
+        final String label;
+
+        Projection(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    int width = 200, height = 200;
+    boolean includeCross = false;
+    boolean horizontalReverse = false;
+    boolean includeAnnotation = false;
+    boolean[] channels;                 // Selected channels, index 0 = Ch1; null selects all
+    Output output = Output.PNG;
+    int montageColumns = 10, montageRows = 10;
+    Projection projection = Projection.NONE;
+    boolean projectTime = false;        // Project over frames around T instead of slices around Z
+    int projectionRange = 2;            // Slices (or frames) on each side of the position
+    DriftTable drift;                   // Per-frame offsets added to crop positions; null for none
+
+    /**
+     * Returns true if the given 1-based channel is included in the snapshot.
+     */
+    boolean isChannelSelected(int channel) {
+        return channels == null || (channel - 1 < channels.length && channels[channel - 1]);
+    }
+
+    /**
+     * Everything that changes the rendered output, recorded in the manifest to decide whether a run can resume.
+     */
+    String key(ImagePlus imp) {
+        StringBuilder selected = new StringBuilder();
+        for (int c = 1; c <= imp.getNChannels(); c++) {
+            selected.append(isChannelSelected(c) ? "1" : "0");
+        }
+        return String.format("image=%s[%dx%dx%dx%dx%d];size=%dx%d;cross=%b;reverse=%b;annotation=%b;channels=%s;output=%s;projection=%s;drift=%s",
+            imp.getTitle(), imp.getWidth(), imp.getHeight(),
+            imp.getNChannels(), imp.getNSlices(), imp.getNFrames(),
+            width, height, includeCross, horizontalReverse, includeAnnotation, selected, output.label,
+            projectionKey(), drift != null ? drift.key() : "none");
+    }
+
+    /**
+     * Projection part of the settings key, e.g. "Max intensity(Z+-2)", or "None".
+     */
+    String projectionKey() {
+        if (projection == Projection.NONE) {
+            return projection.label;
+        }
+        return String.format("%s(%s+-%d)", projection.label, projectTime ? "T" : "Z", projectionRange);
+    }
+}
@@ -0,0 +1,18 @@
+package com.github.ttl.dancenow;
+
+import ij.ImagePlus;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination for rendered snapshots. Snapshots are handed over one at a time in position order,
+ * so implementations can stream them to disk without holding the whole batch in memory.
+ */
+interface SnapshotSink extends Closeable {
+
+    /**
+     * Writes the snapshot taken at the given 1-based position index.
+     */
+    void write(int index, Position pos, ImagePlus snapshot) throws IOException;
+}
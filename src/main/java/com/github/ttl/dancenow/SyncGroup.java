@@ -0,0 +1,101 @@
+package com.github.ttl.dancenow;
+
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.ImageCanvas;
+import ij.gui.ImageWindow;
+
+import javax.swing.SwingUtilities;
+import java.awt.Rectangle;
+
+/**
+ * A group of linked image windows that follow every navigation of the DanceNow window. Each
+ * window keeps its own zoom; only its viewport centre, Z and T move. Navigations are coalesced:
+ * the latest target is recorded and a single pass on the event thread moves every window, so a
+ * burst of Next/Back presses costs one update and one repaint per window, not one per press.
+ * Images are held by ID, so a closed window simply drops out.
+ */
+class SyncGroup {
+    private final int[] imageIds;   // WindowManager IDs of the linked images
+    private int[] pending;          // Latest x,y,z,t not applied yet, null when none
+    private int sourceId;           // Image that was navigated, skipped in the pass
+
+    SyncGroup(int[] imageIds) {
+        this.imageIds = imageIds;
+    }
+
+    int size() {
+        return imageIds.length;
+    }
+
+    boolean contains(ImagePlus imp) {
+        for (int id : imageIds) {
+            if (id == imp.getID()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records a navigation of source to (x, y, z, t) and schedules the pass if none is pending.
+     * Called on the event thread.
+     */
+    void navigate(ImagePlus source, int x, int y, int z, int t) {
+        boolean scheduled = pending != null;
+        pending = new int[]{x, y, z, t};
+        sourceId = source.getID();
+        if (!scheduled) {
+            SwingUtilities.invokeLater(this::apply);
+        }
+    }
+
+    private void apply() {
+        int[] target = pending;
+        pending = null;
+        if (target == null) {
+            return;
+        }
+        for (int id : imageIds) {
+            ImagePlus imp = id != sourceId ? WindowManager.getImage(id) : null;
+            if (imp != null) {
+                // Z and T are limited to what each image has
+                moveView(imp, target[0], target[1],
+                         Math.max(1, Math.min(target[2], imp.getNSlices())),
+                         Math.max(1, Math.min(target[3], imp.getNFrames())));
+            }
+        }
+    }
+
+    /**
+     * Moves the view as one transaction: the viewport and the stack position are changed without
+     * intermediate updates, then the image is redrawn once. Zoom is preserved.
+     */
+    static void moveView(ImagePlus imp, int x, int y, int z, int t) {
+        ImageWindow win = imp.getWindow();
+        ImageCanvas canvas = win != null ? win.getCanvas() : null;
+        if (canvas == null) {
+            return;
+        }
+
+        // Center the source rectangle on the coordinates, keeping it within the image
+        Rectangle srcRect = canvas.getSrcRect();
+        srcRect.x = Math.max(0, Math.min(x - srcRect.width / 2, imp.getWidth() - srcRect.width));
+        srcRect.y = Math.max(0, Math.min(y - srcRect.height / 2, imp.getHeight() - srcRect.height));
+
+        // Apply the viewport change; setSourceRect does not repaint by itself
+        canvas.setSourceRect(srcRect);
+
+        int newZ = imp.getNSlices() > 1 ? z : imp.getZ();
+        int newT = imp.getNFrames() > 1 ? t : imp.getT();
+        if (newZ != imp.getZ() || newT != imp.getT()) {
+            // Set Z and T in one call without a processor update, then rebuild the display once
+            // (a composite image recomputes its RGB buffer only here)
+            imp.setPositionWithoutUpdate(imp.getC(), newZ, newT);
+            imp.updateAndDraw();
+        } else {
+            // Same plane: the pixels are unchanged, only the visible part moved
+            canvas.repaint();
+        }
+    }
+}
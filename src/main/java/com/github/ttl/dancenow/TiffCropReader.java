@@ -0,0 +1,180 @@
+package com.github.ttl.dancenow;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads crops of a virtual stack straight from an uncompressed TIFF. Plane and strip offsets come
+ * from the file's FileInfo, and only the bytes of the rows inside the crop are read, with
+ * positional FileChannel reads, so the cost scales with the crop instead of the plane.
+ */
+class TiffCropReader implements CropReader {
+    private final FileChannel channel;
+    private final int width;
+    private final int fileType;
+    private final int bytesPerPixel;
+    private final ByteOrder order;
+    private final Plane[] planes;
+
+    /** Location of one plane in the file: either contiguous rows or a strip table. */
+    private static class Plane {
+        final long offset;          // First row, when rows are contiguous
+        final long[] strips;        // Strip offsets, or null for contiguous rows
+        final int rowsPerStrip;
+
+        Plane(long offset, long[] strips, int rowsPerStrip) {
+            this.offset = offset;
+            this.strips = strips;
+            this.rowsPerStrip = rowsPerStrip;
+        }
+    }
+
+    private TiffCropReader(File file, FileInfo first, Plane[] planes) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.width = first.width;
+        this.fileType = first.fileType;
+        this.bytesPerPixel = first.getBytesPerPixel();
+        this.order = first.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        this.planes = planes;
+    }
+
+    /**
+     * Returns a reader for a virtual stack backed by an uncompressed grayscale TIFF, or null when
+     * the image is not one (in memory, compressed, RGB, edited, ...) and the stack should be used.
+     */
+    static TiffCropReader open(ImagePlus imp) {
+        FileInfo original = imp.getOriginalFileInfo();
+        if (!imp.getStack().isVirtual() || imp.changes || original == null
+                || original.directory == null || original.fileName == null) {
+            return null;
+        }
+        File file = new File(original.directory, original.fileName);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            FileInfo[] infos = new TiffDecoder(original.directory, original.fileName).getTiffInfo();
+            if (infos == null || infos.length == 0 || !isSupported(infos[0], imp)) {
+                return null;
+            }
+            FileInfo first = infos[0];
+            int nPlanes = imp.getStackSize();
+            Plane[] planes = new Plane[nPlanes];
+            if (infos.length == 1 && first.nImages >= nPlanes) {
+                // ImageJ-style stack: planes follow each other at a fixed stride
+                long planeBytes = (long) first.width * first.height * first.getBytesPerPixel();
+                for (int i = 0; i < nPlanes; i++) {
+                    planes[i] = new Plane(first.getOffset() + i * (planeBytes + first.gapBetweenImages), null, 0);
+                }
+            } else if (infos.length == nPlanes) {
+                // One IFD per plane, possibly with scattered strips
+                for (int i = 0; i < nPlanes; i++) {
+                    FileInfo fi = infos[i];
+                    if (!isSupported(fi, imp) || fi.fileType != first.fileType) {
+                        return null;
+                    }
+                    planes[i] = plane(fi);
+                }
+            } else {
+                return null;
+            }
+            return new TiffCropReader(file, first, planes);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean isSupported(FileInfo fi, ImagePlus imp) {
+        boolean uncompressed = fi.compression == FileInfo.COMPRESSION_NONE || fi.compression == FileInfo.COMPRESSION_UNKNOWN;
+        boolean gray = fi.fileType == FileInfo.GRAY8 || fi.fileType == FileInfo.GRAY16_UNSIGNED
+            || fi.fileType == FileInfo.GRAY16_SIGNED || fi.fileType == FileInfo.GRAY32_FLOAT;
+        return uncompressed && gray && fi.width == imp.getWidth() && fi.height == imp.getHeight();
+    }
+
+    private static Plane plane(FileInfo fi) {
+        int[] offsets = fi.stripOffsets;
+        if (offsets == null || offsets.length <= 1 || fi.rowsPerStrip <= 0) {
+            return new Plane(fi.getOffset(), null, 0);
+        }
+        long rowBytes = (long) fi.width * fi.getBytesPerPixel();
+        long[] strips = new long[offsets.length];
+        boolean contiguous = true;
+        for (int s = 0; s < offsets.length; s++) {
+            strips[s] = offsets[s] & 0xffffffffL; // TIFF offsets are unsigned 32-bit
+            if (strips[s] != strips[0] + s * fi.rowsPerStrip * rowBytes) {
+                contiguous = false;
+            }
+        }
+        return contiguous ? new Plane(strips[0], null, 0) : new Plane(0, strips, fi.rowsPerStrip);
+    }
+
+    @Override
+    public ImageProcessor read(int stackIndex, Rectangle rect) throws IOException {
+        Plane plane = planes[stackIndex - 1];
+        int cropRowBytes = rect.width * bytesPerPixel;
+        ByteBuffer buffer = ByteBuffer.allocate(cropRowBytes * rect.height).order(order);
+        for (int row = 0; row < rect.height; row++) {
+            int y = rect.y + row;
+            long rowStart = plane.strips == null
+                ? plane.offset + (long) y * width * bytesPerPixel
+                : plane.strips[y / plane.rowsPerStrip] + (long) (y % plane.rowsPerStrip) * width * bytesPerPixel;
+            buffer.limit((row + 1) * cropRowBytes);
+            buffer.position(row * cropRowBytes);
+            readFully(buffer, rowStart + (long) rect.x * bytesPerPixel);
+        }
+        buffer.clear();
+
+        int n = rect.width * rect.height;
+        switch (fileType) {
+            case FileInfo.GRAY8: {
+                return new ByteProcessor(rect.width, rect.height, buffer.array());
+            }
+            case FileInfo.GRAY16_UNSIGNED:
+            case FileInfo.GRAY16_SIGNED: {
+                short[] pixels = new short[n];
+                buffer.asShortBuffer().get(pixels);
+                if (fileType == FileInfo.GRAY16_SIGNED) {
+                    // ImageJ shifts signed 16-bit data into the unsigned range
+                    for (int i = 0; i < n; i++) {
+                        pixels[i] = (short) (pixels[i] + 32768);
+                    }
+                }
+                return new ShortProcessor(rect.width, rect.height, pixels, null);
+            }
+            default: {
+                float[] pixels = new float[n];
+                buffer.asFloatBuffer().get(pixels);
+                return new FloatProcessor(rect.width, rect.height, pixels);
+            }
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of TIFF file");
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
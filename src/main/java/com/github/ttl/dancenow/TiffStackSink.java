@@ -0,0 +1,174 @@
+package com.github.ttl.dancenow;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams snapshots into a multi-page TIFF, one page per position.
+ * Each page is written as [IFD][pixel data][pad to even] as soon as it arrives, so memory use does not grow with
+ * the number of positions. Only the last "next IFD" pointer is patched when the file is closed.
+ * Classic TIFF offsets are 32-bit, so the output rolls over to Snapshots_002.tif, ... before 4 GB.
+ */
+class TiffStackSink implements SnapshotSink {
+    private static final int TAG_COUNT = 11;
+    private static final int IFD_SIZE = 2 + TAG_COUNT * 12 + 4;
+    private static final int EXTRA_SIZE = 8;                  // BitsPerSample array for RGB pages
+    private static final long MAX_FILE_SIZE = 0xFFFFFFFFL;
+
+    private final File saveDir;
+    private final String baseName;
+    private final int pageWidth, pageHeight;
+
+    private FileChannel channel;
+    private RandomAccessFile file;
+    private int volume = 0;
+    private long position;                 // Next free byte in the current file
+    private long lastNextIfdPointer = -1;  // Where the previous page's "next IFD" offset lives
+    private int bitDepth = -1;             // Pixel type fixed by the first page
+
+    TiffStackSink(File saveDir, boolean horizontalReverse, int pageWidth, int pageHeight) {
+        this.saveDir = saveDir;
+        this.baseName = horizontalReverse ? "Snapshots_reverse" : "Snapshots";
+        this.pageWidth = pageWidth;
+        this.pageHeight = pageHeight;
+    }
+
+    @Override
+    public void write(int index, Position pos, ImagePlus snapshot) throws IOException {
+        ImageProcessor ip = snapshot.getProcessor();
+        if (bitDepth < 0) {
+            bitDepth = ip.getBitDepth();
+        } else if (ip.getBitDepth() != bitDepth) {
+            if (bitDepth != 24) {
+                throw new IOException("Snapshot " + index + " has a different pixel type than the first page");
+            }
+            ip = ip.convertToRGB();
+        }
+
+        // Edge positions produce smaller crops; pad them so every page has the same size
+        if (ip.getWidth() != pageWidth || ip.getHeight() != pageHeight) {
+            ImageProcessor page = ip.createProcessor(pageWidth, pageHeight);
+            page.insert(ip, 0, 0);
+            ip = page;
+        }
+
+        int samples = bitDepth == 24 ? 3 : 1;
+        int bytesPerSample = bitDepth == 24 ? 1 : bitDepth / 8;
+        long pixelBytes = (long) pageWidth * pageHeight * samples * bytesPerSample;
+        // IFDs must start on a word boundary; a pad byte after odd pixel data keeps the next one even
+        long pageSize = IFD_SIZE + EXTRA_SIZE + pixelBytes + (pixelBytes & 1);
+
+        if (channel == null || position + pageSize > MAX_FILE_SIZE) {
+            openNextVolume();
+        }
+
+        long ifdOffset = position;
+        if (lastNextIfdPointer >= 0) {
+            writeInt(lastNextIfdPointer, ifdOffset);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) pageSize);
+        long extraOffset = ifdOffset + IFD_SIZE;
+        long pixelOffset = extraOffset + EXTRA_SIZE;
+
+        buffer.putShort((short) TAG_COUNT);
+        putTag(buffer, 254, 4, 1, 0);                                    // NewSubfileType
+        putTag(buffer, 256, 4, 1, pageWidth);                            // ImageWidth
+        putTag(buffer, 257, 4, 1, pageHeight);                           // ImageLength
+        if (samples == 3) {
+            putTag(buffer, 258, 3, 3, extraOffset);                      // BitsPerSample -> 8,8,8
+        } else {
+            putShortTag(buffer, 258, bitDepth);
+        }
+        putShortTag(buffer, 259, 1);                                     // Compression: none
+        putShortTag(buffer, 262, samples == 3 ? 2 : 1);                  // Photometric: RGB / BlackIsZero
+        putTag(buffer, 273, 4, 1, pixelOffset);                          // StripOffsets
+        putShortTag(buffer, 277, samples);                               // SamplesPerPixel
+        putTag(buffer, 278, 4, 1, pageHeight);                           // RowsPerStrip
+        putTag(buffer, 279, 4, 1, pixelBytes);                           // StripByteCounts
+        putShortTag(buffer, 339, bitDepth == 32 ? 3 : 1);                // SampleFormat: float / uint
+        lastNextIfdPointer = ifdOffset + buffer.position();
+        buffer.putInt(0);                                                // Next IFD, patched later
+
+        buffer.putShort((short) 8).putShort((short) 8).putShort((short) 8).putShort((short) 0);
+        putPixels(buffer, ip);
+
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        position += pageSize;
+    }
+
+    private void openNextVolume() throws IOException {
+        closeVolume();
+        volume++;
+        String name = volume == 1 ? baseName + ".tif" : String.format("%s_%03d.tif", baseName, volume);
+        file = new RandomAccessFile(new File(saveDir, name), "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+
+        // Big-endian header: "MM", 42, first IFD right after the header
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(8);
+        header.flip();
+        channel.write(header, 0);
+        position = 8;
+        lastNextIfdPointer = -1;
+    }
+
+    private void writeInt(long offset, long value) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt((int) value);
+        buffer.flip();
+        channel.write(buffer, offset);
+    }
+
+    private static void putTag(ByteBuffer buffer, int tag, int type, int count, long value) {
+        buffer.putShort((short) tag).putShort((short) type).putInt(count).putInt((int) value);
+    }
+
+    private static void putShortTag(ByteBuffer buffer, int tag, int value) {
+        // SHORT values are left-justified in the 4-byte value field
+        buffer.putShort((short) tag).putShort((short) 3).putInt(1).putShort((short) value).putShort((short) 0);
+    }
+
+    private static void putPixels(ByteBuffer buffer, ImageProcessor ip) {
+        Object pixels = ip.getPixels();
+        if (pixels instanceof byte[]) {
+            buffer.put((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            for (short value : (short[]) pixels) {
+                buffer.putShort(value);
+            }
+        } else if (pixels instanceof float[]) {
+            for (float value : (float[]) pixels) {
+                buffer.putFloat(value);
+            }
+        } else if (pixels instanceof int[]) {
+            for (int rgb : (int[]) pixels) {
+                buffer.put((byte) (rgb >> 16)).put((byte) (rgb >> 8)).put((byte) rgb);
+            }
+        }
+    }
+
+    private void closeVolume() throws IOException {
+        if (file != null) {
+            channel.force(false);
+            file.close();
+            file = null;
+            channel = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeVolume();
+    }
+}
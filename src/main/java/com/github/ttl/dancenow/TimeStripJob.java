@@ -0,0 +1,208 @@
+package com.github.ttl.dancenow;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Builds a time strip (one crop per frame, side by side) or a kymograph (a horizontal line through
+ * the position, one row per frame) for every position. Frames are visited once, in stack order:
+ * for each (z,t) plane all positions on it are cropped together, so the data is read in a single
+ * pass instead of once per position. Strips are kept in memory until the pass ends; if they do not
+ * fit in a quarter of the heap, positions are split into batches with one pass each.
+ */
+class TimeStripJob {
+    private final SnapshotEngine engine;
+    private final List<Position> positions;
+    private final File saveDir;
+    private final boolean kymograph;
+    private final int threads;
+    private final int tileWidth, tileHeight;    // One frame of a strip; a kymograph row is tileWidth x 1
+    private int writtenCount = 0;
+
+    TimeStripJob(SnapshotEngine engine, List<Position> positions, File saveDir, boolean kymograph) {
+        this.engine = engine;
+        this.positions = positions;
+        this.saveDir = saveDir;
+        this.kymograph = kymograph;
+        this.threads = Math.max(1, Prefs.getThreads());
+        this.tileWidth = engine.pageWidth();
+        this.tileHeight = kymograph ? 1 : engine.pageHeight();
+    }
+
+    int getWrittenCount() {
+        return writtenCount;
+    }
+
+    /**
+     * Builds and saves all strips. Returns false if the job was cancelled before finishing.
+     */
+    boolean run(SnapshotJob.ProgressListener listener, BooleanSupplier cancelled) throws IOException {
+        int nFrames = engine.getNFrames();
+        long stripBytes = (long) tileWidth * tileHeight * nFrames * 4;
+        int batchSize = (int) Math.max(1, Math.min(positions.size(), IJ.maxMemory() / 4 / stripBytes));
+        int passes = (positions.size() + batchSize - 1) / batchSize;
+        int total = passes * nFrames;
+        int done = 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int first = 0; first < positions.size(); first += batchSize) {
+                int count = Math.min(batchSize, positions.size() - first);
+                ColorProcessor[] strips = new ColorProcessor[count];
+                for (int i = 0; i < count; i++) {
+                    strips[i] = kymograph
+                        ? new ColorProcessor(tileWidth, nFrames)
+                        : new ColorProcessor(tileWidth * nFrames, tileHeight);
+                }
+
+                for (int t = 1; t <= nFrames; t++) {
+                    if (cancelled.getAsBoolean()) {
+                        return false;
+                    }
+                    fillFrame(pool, first, strips, t);
+                    listener.progress(++done, total);
+                }
+
+                for (int i = 0; i < count; i++) {
+                    save(first + i + 1, positions.get(first + i), strips[i]);
+                    writtenCount++;
+                }
+            }
+
+            try (FileWriter writer = new FileWriter(new File(saveDir, "positions.csv"))) {
+                writer.write(SnapshotJob.positionsCSV(positions));
+            }
+            return true;
+        } finally {
+            SnapshotJob.shutdownAndWait(pool);
+            engine.close();
+        }
+    }
+
+    /**
+     * Pastes frame t of every strip in the batch. Positions are grouped by plane and each plane is
+     * read once per channel; planes of the frame are processed in parallel.
+     */
+    private void fillFrame(ExecutorService pool, int first, ColorProcessor[] strips, int t) throws IOException {
+        Map<Integer, List<Integer>> byPlane = new TreeMap<>(); // z -> batch indices
+        for (int i = 0; i < strips.length; i++) {
+            int z = engine.clampZ(positions.get(first + i).z);
+            byPlane.computeIfAbsent(z, k -> new ArrayList<>()).add(i);
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (Map.Entry<Integer, List<Integer>> plane : byPlane.entrySet()) {
+            int z = plane.getKey();
+            List<Integer> members = plane.getValue();
+            futures.add(pool.submit(() -> {
+                Rectangle[] rects = new Rectangle[members.size()];
+                for (int m = 0; m < rects.length; m++) {
+                    rects[m] = frameRect(positions.get(first + members.get(m)), t);
+                }
+                int[] channels = engine.getSelectedChannels();
+                ImageProcessor[][] crops = new ImageProcessor[channels.length][];
+                for (int c = 0; c < channels.length; c++) {
+                    crops[c] = engine.readCrops(channels[c], z, t, rects);
+                }
+                for (int m = 0; m < rects.length; m++) {
+                    ImageProcessor[] channelCrops = new ImageProcessor[channels.length];
+                    for (int c = 0; c < channels.length; c++) {
+                        channelCrops[c] = crops[c][m];
+                    }
+                    paste(strips[members.get(m)], tile(engine.toRGB(channelCrops)), t);
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Time strip interrupted", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException("Time strip failed: " + cause, cause);
+                }
+            }
+        } finally {
+            // After a failure, planes not started yet are dropped
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Crop for frame t: the snapshot rectangle, or a one-pixel-high line through the position,
+     * following the drift of the frame if the settings have a drift table.
+     */
+    private Rectangle frameRect(Position pos, int t) {
+        Rectangle rect = engine.cropRect(pos, t);
+        if (kymograph) {
+            DriftTable drift = engine.getSettings().drift;
+            int y = pos.y + (drift != null ? drift.dy(t) : 0);
+            y = Math.max(0, Math.min(y, engine.getImage().getHeight() - 1));
+            return new Rectangle(rect.x, y, rect.width, 1);
+        }
+        return rect;
+    }
+
+    /**
+     * Pads edge crops to the tile size, then applies the flip and cross like a snapshot.
+     */
+    private ColorProcessor tile(ColorProcessor crop) {
+        ColorProcessor tile = crop;
+        if (crop.getWidth() != tileWidth || crop.getHeight() != tileHeight) {
+            tile = new ColorProcessor(tileWidth, tileHeight);
+            tile.insert(crop, 0, 0);
+        }
+        SnapshotSettings settings = engine.getSettings();
+        if (settings.horizontalReverse) {
+            tile.flipHorizontal();
+        }
+        if (settings.includeCross && !kymograph) {
+            SnapshotAnnotator.drawCross(tile);
+        }
+        return tile;
+    }
+
+    private void paste(ColorProcessor strip, ColorProcessor tile, int t) {
+        if (kymograph) {
+            strip.insert(tile, 0, t - 1);
+        } else {
+            strip.insert(tile, (t - 1) * tileWidth, 0);
+        }
+    }
+
+    private void save(int index, Position pos, ColorProcessor strip) throws IOException {
+        SnapshotSettings settings = engine.getSettings();
+        if (settings.includeAnnotation) {
+            SnapshotAnnotator.drawText(strip, SnapshotAnnotator.label(index, pos.note));
+        }
+        String name = String.format("%s%s_%03d.png", kymograph ? "Kymograph" : "TimeStrip",
+                                    settings.horizontalReverse ? "_reverse" : "", index);
+        Files.write(new File(saveDir, name).toPath(), SnapshotEncoder.png(strip));
+    }
+}
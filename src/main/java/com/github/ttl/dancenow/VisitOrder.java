@@ -0,0 +1,134 @@
+package com.github.ttl.dancenow;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Short visiting tour over a list of positions, used as a view permutation for Next/Back and for
+ * the snapshot order. The cost of a step is the XY distance plus a penalty per Z slice and T frame
+ * crossed, so the tour prefers finishing a plane before switching. The tour starts at the first
+ * position, is seeded with nearest neighbour and improved with 2-opt; large lists are improved in
+ * independent segments on all cores.
+ */
+final class VisitOrder {
+    private static final int PARALLEL_SIZE = 2000;   // Lists at least this long use parallel search
+    private static final int SEGMENT = 1000;         // 2-opt segment length for large lists
+    private static final int MAX_PASSES = 50;
+
+    private VisitOrder() {
+    }
+
+    /**
+     * Returns indices into positions in visiting order.
+     *
+     * @param planeCost cost of moving one slice in Z or one frame in T, in pixels of XY travel
+     */
+    static int[] optimize(List<Position> positions, double planeCost) {
+        int n = positions.size();
+        int[] x = new int[n], y = new int[n], z = new int[n], t = new int[n];
+        for (int i = 0; i < n; i++) {
+            Position pos = positions.get(i);
+            x[i] = pos.x;
+            y[i] = pos.y;
+            z[i] = pos.z;
+            t[i] = pos.t;
+        }
+        Cost cost = (a, b) -> Math.hypot(x[a] - x[b], y[a] - y[b])
+            + planeCost * (Math.abs(z[a] - z[b]) + Math.abs(t[a] - t[b]));
+
+        int[] tour = nearestNeighbour(n, cost);
+        if (n < PARALLEL_SIZE) {
+            twoOpt(tour, 0, n - 1, true, cost);
+        } else {
+            // Segments have fixed end points, so they can be improved independently; a second
+            // round shifted by half a segment lets improvements cross the first round's borders
+            for (int offset = 0; offset <= SEGMENT / 2; offset += SEGMENT / 2) {
+                final int shift = offset;
+                int segments = (n - shift + SEGMENT - 1) / SEGMENT;
+                IntStream.range(0, segments).parallel().forEach(s -> {
+                    int from = shift + s * SEGMENT;
+                    int to = Math.min(n - 1, from + SEGMENT);
+                    twoOpt(tour, from, to, to == n - 1, cost);
+                });
+            }
+        }
+        return tour;
+    }
+
+    /**
+     * Total cost of visiting positions in the given order.
+     */
+    static double length(List<Position> positions, int[] order, double planeCost) {
+        double total = 0;
+        for (int i = 1; i < order.length; i++) {
+            Position a = positions.get(order[i - 1]);
+            Position b = positions.get(order[i]);
+            total += Math.hypot(a.x - b.x, a.y - b.y) + planeCost * (Math.abs(a.z - b.z) + Math.abs(a.t - b.t));
+        }
+        return total;
+    }
+
+    private interface Cost {
+        double between(int a, int b);
+    }
+
+    private static int[] nearestNeighbour(int n, Cost cost) {
+        int[] tour = new int[n];
+        boolean[] visited = new boolean[n];
+        if (n == 0) {
+            return tour;
+        }
+        tour[0] = 0;
+        visited[0] = true;
+        for (int step = 1; step < n; step++) {
+            int from = tour[step - 1];
+            IntStream candidates = IntStream.range(0, n).filter(i -> !visited[i]);
+            if (n - step >= PARALLEL_SIZE) {
+                candidates = candidates.parallel();
+            }
+            // Ties resolve to the lower index so the result does not depend on thread timing
+            int next = candidates.reduce((a, b) -> {
+                int c = Double.compare(cost.between(from, a), cost.between(from, b));
+                return c < 0 || (c == 0 && a < b) ? a : b;
+            }).getAsInt();
+            tour[step] = next;
+            visited[next] = true;
+        }
+        return tour;
+    }
+
+    /**
+     * 2-opt over tour[from..to]. tour[from] stays in place; tour[to] too unless openEnd, in which
+     * case the path may end anywhere. Only this range of the array is written.
+     */
+    private static void twoOpt(int[] tour, int from, int to, boolean openEnd, Cost cost) {
+        boolean improved = true;
+        for (int pass = 0; pass < MAX_PASSES && improved; pass++) {
+            improved = false;
+            for (int i = from + 1; i < to; i++) {
+                int a = tour[i - 1];
+                int b = tour[i];
+                int last = openEnd ? to : to - 1;
+                for (int j = i + 1; j <= last; j++) {
+                    int c = tour[j];
+                    boolean hasNext = j < to;
+                    double before = cost.between(a, b) + (hasNext ? cost.between(c, tour[j + 1]) : 0);
+                    double after = cost.between(a, c) + (hasNext ? cost.between(b, tour[j + 1]) : 0);
+                    if (after < before - 1e-9) {
+                        reverse(tour, i, j);
+                        b = tour[i];
+                        improved = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void reverse(int[] tour, int i, int j) {
+        while (i < j) {
+            int tmp = tour[i];
+            tour[i++] = tour[j];
+            tour[j--] = tmp;
+        }
+    }
+}
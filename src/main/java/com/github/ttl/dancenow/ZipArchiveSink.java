@@ -0,0 +1,63 @@
+package com.github.ttl.dancenow;
+
+import ij.ImagePlus;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams snapshots into a single Snapshots.zip as they are encoded, instead of creating one file
+ * per position. PNG data is already compressed, so snapshots are STORED; text entries such as
+ * positions.csv are DEFLATED.
+ */
+class ZipArchiveSink implements EncodedSnapshotSink {
+    private final boolean horizontalReverse;
+    private final ZipOutputStream zip;
+
+    ZipArchiveSink(File saveDir, boolean horizontalReverse) throws IOException {
+        this.horizontalReverse = horizontalReverse;
+        String name = horizontalReverse ? "Snapshots_reverse.zip" : "Snapshots.zip";
+        this.zip = new ZipOutputStream(new BufferedOutputStream(
+            new FileOutputStream(new File(saveDir, name)), 1024 * 1024));
+    }
+
+    @Override
+    public void write(int index, Position pos, ImagePlus snapshot) throws IOException {
+        writeEncoded(index, pos, SnapshotEncoder.png(snapshot.getProcessor()));
+    }
+
+    @Override
+    public void writeEncoded(int index, Position pos, byte[] png) throws IOException {
+        writeEntry(PngDirectorySink.fileName(index, horizontalReverse), png, false);
+    }
+
+    /**
+     * Adds a named entry to the archive. Stored entries need their size and CRC up front.
+     */
+    void writeEntry(String name, byte[] data, boolean compress) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (compress) {
+            entry.setMethod(ZipEntry.DEFLATED);
+        } else {
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    @Override
+    public void close() throws IOException {
+        zip.close();
+    }
+}